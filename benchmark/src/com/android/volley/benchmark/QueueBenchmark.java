@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.PriorityLevelQueue;
+import com.android.volley.Request;
+import com.android.volley.request.StringRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the throughput of {@link PriorityLevelQueue} with that of the
+ * {@link PriorityBlockingQueue} it replaced, with 1 to 16 producer threads inserting requests
+ * of mixed priorities while as many consumer threads take them.
+ * <p>
+ * Run with <code>./gradlew :benchmark:testDebugUnitTest -i</code>. As with JMH, each case
+ * runs a few warmup iterations before the measured ones, and the mean throughput is printed
+ * with its standard deviation and range. Nothing about the timings is asserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class QueueBenchmark {
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int REQUESTS_PER_PRODUCER = 50000;
+
+    private static final Request.Priority[] PRIORITIES = Request.Priority.values();
+
+    private interface QueueFactory {
+        BlockingQueue<Request<?>> create();
+    }
+
+    @Test
+    public void compareQueues() throws Exception {
+        QueueFactory levels = new QueueFactory() {
+            @Override
+            public BlockingQueue<Request<?>> create() {
+                return new PriorityLevelQueue();
+            }
+        };
+        QueueFactory heap = new QueueFactory() {
+            @Override
+            public BlockingQueue<Request<?>> create() {
+                return new PriorityBlockingQueue<Request<?>>();
+            }
+        };
+        for (int threads : THREAD_COUNTS) {
+            System.out.println(measure("PriorityLevelQueue", levels, threads));
+            System.out.println(measure("PriorityBlockingQueue", heap, threads));
+        }
+    }
+
+    private static Result measure(String name, QueueFactory factory, int threads)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                run(executor, factory.create(), threads);
+            }
+            double[] opsPerSecond = new double[MEASURED_ITERATIONS];
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                opsPerSecond[i] = run(executor, factory.create(), threads);
+            }
+            return new Result(name, threads, opsPerSecond);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Moves {@link #REQUESTS_PER_PRODUCER} requests per producer through the queue, returning
+     * the number of requests inserted and taken per second.
+     */
+    private static double run(ExecutorService executor, final BlockingQueue<Request<?>> queue,
+            int threads) throws Exception {
+        // Built up front so that only the queue is measured.
+        final List<Request<?>[]> batches = new ArrayList<Request<?>[]>(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            Request<?>[] batch = new Request<?>[REQUESTS_PER_PRODUCER];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new StringRequest("http://localhost/" + i, null, null);
+                batch[i].setPriority(PRIORITIES[(thread + i) % PRIORITIES.length]);
+            }
+            batches.add(batch);
+        }
+        final AtomicInteger sequence = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger(threads * REQUESTS_PER_PRODUCER);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(threads * 2);
+        for (final Request<?>[] batch : batches) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (Request<?> request : batch) {
+                        // As RequestQueue numbers requests when they are added.
+                        request.setSequence(sequence.incrementAndGet());
+                        queue.put(request);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int thread = 0; thread < threads; thread++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    while (remaining.decrementAndGet() >= 0) {
+                        queue.take();
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        assertTrue(queue.isEmpty());
+        return threads * REQUESTS_PER_PRODUCER * 1e9 / elapsedNanos;
+    }
+
+    private static class Result {
+        final String name;
+        final int threads;
+        final double mean;
+        final double deviation;
+        final double min;
+        final double max;
+
+        Result(String name, int threads, double[] opsPerSecond) {
+            this.name = name;
+            this.threads = threads;
+            double sum = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (double ops : opsPerSecond) {
+                sum += ops;
+                min = Math.min(min, ops);
+                max = Math.max(max, ops);
+            }
+            mean = sum / opsPerSecond.length;
+            double squares = 0;
+            for (double ops : opsPerSecond) {
+                squares += (ops - mean) * (ops - mean);
+            }
+            deviation = Math.sqrt(squares / opsPerSecond.length);
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-21s %2d+%-2d threads  %10.0f +/- %8.0f ops/s  "
+                    + "(min %.0f, max %.0f)", name, threads, threads, mean, deviation, min, max);
+        }
+    }
+}
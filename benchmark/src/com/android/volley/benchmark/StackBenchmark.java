@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.volley.request.StringRequest;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpStack;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.OkHttpStack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+/**
+ * Compares {@link OkHttpStack} with {@link HurlStack} on concurrent requests to a local server
+ * speaking HTTP/2 over TLS. OkHttp negotiates HTTP/2 and multiplexes every request over one
+ * connection; HttpURLConnection only speaks HTTP/1.1, so concurrent requests each need a
+ * connection of their own.
+ * <p>
+ * Run with <code>./gradlew :benchmark:testDebugUnitTest -i</code>. Each stack is warmed up,
+ * then the throughput, latency percentiles and connections opened while measuring are printed.
+ * Only the connection counts are asserted, as timings depend on the machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class StackBenchmark {
+
+    private static final int THREADS = 8;
+    private static final int WARMUP_REQUESTS_PER_THREAD = 20;
+    private static final int REQUESTS_PER_THREAD = 200;
+
+    /** Time the server waits before responding, standing in for a round trip. */
+    private static final long SERVER_DELAY_MS = 10;
+
+    private static final int BODY_BYTES = 16 * 1024;
+
+    private MockWebServer mServer;
+    private HandshakeCertificates mClientCertificates;
+
+    @Before
+    public void setUp() throws Exception {
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        mClientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+
+        char[] chars = new char[BODY_BYTES];
+        Arrays.fill(chars, 'x');
+        final String body = new String(chars);
+        mServer = new MockWebServer();
+        mServer.useHttps(serverCertificates.sslSocketFactory(), false);
+        mServer.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse()
+                        .setBody(body)
+                        .setHeadersDelay(SERVER_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+        mServer.start(InetAddress.getByName("localhost"), 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void compareStacks() throws Exception {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .sslSocketFactory(mClientCertificates.sslSocketFactory(),
+                        mClientCertificates.trustManager())
+                .build();
+        Result okHttp = measure("OkHttp", new OkHttpStack(client));
+        Result hurl = measure("Hurl", new HurlStack(null, mClientCertificates.sslSocketFactory()));
+        System.out.println(okHttp);
+        System.out.println(hurl);
+
+        // Every request was multiplexed over the connection opened while warming up.
+        assertEquals(0, okHttp.connections);
+    }
+
+    private Result measure(String name, HttpStack stack) throws Exception {
+        BasicNetwork network = new BasicNetwork(stack);
+        String url = mServer.url("/").toString();
+
+        // A single request first, so that concurrent ones find its connection.
+        network.performRequest(new StringRequest(url, null, null));
+        run(network, url, WARMUP_REQUESTS_PER_THREAD);
+        takeConnectionCount();
+
+        long start = System.nanoTime();
+        long[] latencies = run(network, url, REQUESTS_PER_THREAD);
+        long elapsedNanos = System.nanoTime() - start;
+        return new Result(name, latencies, elapsedNanos, takeConnectionCount());
+    }
+
+    /**
+     * Performs requests on {@link #THREADS} threads at once, returning their latencies.
+     */
+    private static long[] run(final BasicNetwork network, final String url,
+            final int requestsPerThread) throws Exception {
+        final long[] latencies = new long[THREADS * requestsPerThread];
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(THREADS);
+            for (int thread = 0; thread < THREADS; thread++) {
+                final int offset = thread * requestsPerThread;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            long requestStart = System.nanoTime();
+                            network.performRequest(new StringRequest(url, null, null));
+                            latencies[offset + i] = System.nanoTime() - requestStart;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return latencies;
+    }
+
+    /**
+     * Returns the number of connections the server accepted since the last call.
+     */
+    private int takeConnectionCount() throws InterruptedException {
+        int connections = 0;
+        RecordedRequest request;
+        while ((request = mServer.takeRequest(0, TimeUnit.MILLISECONDS)) != null) {
+            // Numbered per connection, from 0.
+            if (request.getSequenceNumber() == 0) {
+                connections++;
+            }
+        }
+        return connections;
+    }
+
+    private static class Result {
+        final String name;
+        final long[] latencies;
+        final long elapsedNanos;
+        final int connections;
+
+        Result(String name, long[] latencies, long elapsedNanos, int connections) {
+            this.name = name;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.elapsedNanos = elapsedNanos;
+            this.connections = connections;
+        }
+
+        double percentileMs(double p) {
+            int index = (int) Math.min(latencies.length - 1, Math.ceil(p * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-7s %7.0f req/s  p50 %6.1f ms  p90 %6.1f ms  "
+                    + "p99 %6.1f ms  %d new connections", name,
+                    latencies.length * 1e9 / elapsedNanos, percentileMs(0.5), percentileMs(0.9),
+                    percentileMs(0.99), connections);
+        }
+    }
+}
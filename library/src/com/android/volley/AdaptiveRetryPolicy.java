@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.error.TimeoutError;
+import com.android.volley.error.VolleyError;
+
+/**
+ * Retry policy whose timeouts follow the latencies actually observed for the request's host.
+ *
+ * <p>Until a {@link LatencyEstimator} has seen enough responses from the host the policy behaves
+ * like a {@link DefaultRetryPolicy} with the given fallback timeout. Afterwards the read timeout
+ * is a high percentile of observed response times with some headroom, and the connect timeout
+ * is derived from observed connect times when those are available. Both are kept within
+ * configurable floors and ceilings.</p>
+ */
+public class AdaptiveRetryPolicy implements RetryPolicy {
+
+    /** The default lower bound for the read timeout in milliseconds. */
+    public static final int DEFAULT_MIN_TIMEOUT_MS = 500;
+
+    /** The default upper bound for the read timeout in milliseconds. */
+    public static final int DEFAULT_MAX_TIMEOUT_MS = 20000;
+
+    /** The default lower bound for the connect timeout in milliseconds. */
+    public static final int DEFAULT_MIN_CONNECT_TIMEOUT_MS = 1000;
+
+    /** The default upper bound for the connect timeout in milliseconds. */
+    public static final int DEFAULT_MAX_CONNECT_TIMEOUT_MS = 10000;
+
+    /** Percentile of observed latencies the timeouts are based on. */
+    private static final double TIMEOUT_PERCENTILE = 0.95;
+
+    /** Headroom applied on top of the observed percentile. */
+    private static final float TIMEOUT_HEADROOM = 2f;
+
+    /** Number of samples needed before observed latencies are trusted. */
+    private static final int MIN_SAMPLES = 8;
+
+    private final LatencyEstimator mEstimator;
+    private final String mHost;
+    private final int mFallbackTimeoutMs;
+    private final int mMaxNumRetries;
+    private final float mBackoffMultiplier;
+
+    private int mMinTimeoutMs = DEFAULT_MIN_TIMEOUT_MS;
+    private int mMaxTimeoutMs = DEFAULT_MAX_TIMEOUT_MS;
+    private int mMinConnectTimeoutMs = DEFAULT_MIN_CONNECT_TIMEOUT_MS;
+    private int mMaxConnectTimeoutMs = DEFAULT_MAX_CONNECT_TIMEOUT_MS;
+
+    /** The current read timeout in milliseconds, or -1 until first computed. */
+    private int mCurrentTimeoutMs = -1;
+
+    /** The current connect timeout in milliseconds, or -1 until first computed. */
+    private int mCurrentConnectTimeoutMs = -1;
+
+    /** The current retry count. */
+    private int mCurrentRetryCount;
+
+    /**
+     * Constructs a new adaptive policy sharing the default {@link LatencyEstimator} and using
+     * the {@link DefaultRetryPolicy} defaults until enough samples are available.
+     * @param url URL of the request this policy is used for
+     */
+    public AdaptiveRetryPolicy(String url) {
+        this(url, DefaultRetryPolicy.DEFAULT_TIMEOUT_MS, DefaultRetryPolicy.DEFAULT_MAX_RETRIES,
+                DefaultRetryPolicy.DEFAULT_BACKOFF_MULT);
+    }
+
+    /**
+     * Constructs a new adaptive policy sharing the default {@link LatencyEstimator}.
+     * @param url URL of the request this policy is used for
+     * @param fallbackTimeoutMs The timeout to use until enough samples are available
+     * @param maxNumRetries The maximum number of retries
+     * @param backoffMultiplier Backoff multiplier for the policy
+     */
+    public AdaptiveRetryPolicy(String url, int fallbackTimeoutMs, int maxNumRetries,
+            float backoffMultiplier) {
+        this(LatencyEstimator.getDefault(), url, fallbackTimeoutMs, maxNumRetries,
+                backoffMultiplier);
+    }
+
+    /**
+     * Constructs a new adaptive policy.
+     * @param estimator The estimator to learn from and report to
+     * @param url URL of the request this policy is used for
+     * @param fallbackTimeoutMs The timeout to use until enough samples are available
+     * @param maxNumRetries The maximum number of retries
+     * @param backoffMultiplier Backoff multiplier for the policy
+     */
+    public AdaptiveRetryPolicy(LatencyEstimator estimator, String url, int fallbackTimeoutMs,
+            int maxNumRetries, float backoffMultiplier) {
+        mEstimator = estimator;
+        mHost = LatencyEstimator.getHost(url);
+        mFallbackTimeoutMs = fallbackTimeoutMs;
+        mMaxNumRetries = maxNumRetries;
+        mBackoffMultiplier = backoffMultiplier;
+    }
+
+    /**
+     * Sets the floor and ceiling for the read timeout.
+     *
+     * @return This policy to allow for chaining.
+     */
+    public AdaptiveRetryPolicy setTimeoutBounds(int minTimeoutMs, int maxTimeoutMs) {
+        mMinTimeoutMs = minTimeoutMs;
+        mMaxTimeoutMs = maxTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Sets the floor and ceiling for the connect timeout.
+     *
+     * @return This policy to allow for chaining.
+     */
+    public AdaptiveRetryPolicy setConnectTimeoutBounds(int minTimeoutMs, int maxTimeoutMs) {
+        mMinConnectTimeoutMs = minTimeoutMs;
+        mMaxConnectTimeoutMs = maxTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Returns the current read timeout.
+     */
+    @Override
+    public synchronized int getCurrentTimeout() {
+        if (mCurrentTimeoutMs < 0) {
+            long observed = mEstimator.getResponsePercentile(mHost, TIMEOUT_PERCENTILE,
+                    MIN_SAMPLES);
+            mCurrentTimeoutMs = observed < 0 ? mFallbackTimeoutMs
+                    : clamp(observed * TIMEOUT_HEADROOM, mMinTimeoutMs, mMaxTimeoutMs);
+        }
+        return mCurrentTimeoutMs;
+    }
+
+    /**
+     * Returns the current connect timeout.
+     */
+    public synchronized int getConnectTimeout() {
+        if (mCurrentConnectTimeoutMs < 0) {
+            long observed = mEstimator.getConnectPercentile(mHost, TIMEOUT_PERCENTILE,
+                    MIN_SAMPLES);
+            // Without connect samples, a connect can't reasonably take longer than a response.
+            mCurrentConnectTimeoutMs = observed < 0
+                    ? clamp(getCurrentTimeout(), mMinConnectTimeoutMs, mMaxConnectTimeoutMs)
+                    : clamp(observed * TIMEOUT_HEADROOM, mMinConnectTimeoutMs,
+                            mMaxConnectTimeoutMs);
+        }
+        return mCurrentConnectTimeoutMs;
+    }
+
+    /**
+     * Returns the current retry count.
+     */
+    @Override
+    public synchronized int getCurrentRetryCount() {
+        return mCurrentRetryCount;
+    }
+
+    /**
+     * Returns the backoff multiplier for the policy.
+     */
+    public float getBackoffMultiplier() {
+        return mBackoffMultiplier;
+    }
+
+    /**
+     * Returns the estimator the policy learns from and reports to.
+     */
+    public LatencyEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * Reports how long an attempt took to receive a response from the host.
+     */
+    public void onResponse(long networkTimeMs) {
+        mEstimator.recordResponse(mHost, networkTimeMs);
+    }
+
+    /**
+     * Prepares for the next retry by applying a backoff to both timeouts.
+     * @param error The error code of the last attempt.
+     */
+    @Override
+    public synchronized void retry(VolleyError error) throws VolleyError {
+        int timeoutMs = getCurrentTimeout();
+        int connectTimeoutMs = getConnectTimeout();
+        if (error instanceof TimeoutError) {
+            // The time the attempt ran is only a lower bound on the host's latency.
+            long waitedMs = error.getNetworkTimeMs();
+            mEstimator.recordTimeout(mHost, waitedMs > 0 ? waitedMs : timeoutMs);
+        }
+        mCurrentRetryCount++;
+        mCurrentTimeoutMs = clamp(timeoutMs + timeoutMs * mBackoffMultiplier,
+                timeoutMs, Math.max(timeoutMs, mMaxTimeoutMs));
+        mCurrentConnectTimeoutMs = clamp(connectTimeoutMs + connectTimeoutMs * mBackoffMultiplier,
+                connectTimeoutMs, Math.max(connectTimeoutMs, mMaxConnectTimeoutMs));
+        if (!hasAttemptRemaining()) {
+            throw error;
+        }
+    }
+
+    /**
+     * Returns true if this policy has attempts remaining, false otherwise.
+     */
+    protected boolean hasAttemptRemaining() {
+        return mCurrentRetryCount <= mMaxNumRetries;
+    }
+
+    private static int clamp(float value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
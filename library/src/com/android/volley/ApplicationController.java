@@ -59,7 +59,7 @@ public class ApplicationController extends Application {
 		// set the default tag if tag is empty
 		req.setTag(TextUtils.isEmpty(tag) ? TAG : tag);
 
-		VolleyLog.d("Adding request to queue: %s", req.getUrl());
+		VolleyLog.v("Adding request to queue: %s", req.getUrl());
 
 		getRequestQueue().add(req);
 	}
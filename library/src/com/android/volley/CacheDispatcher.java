@@ -18,6 +18,11 @@ package com.android.volley;
 
 import android.os.Process;
 
+import com.android.volley.Request.Marker;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 
 
@@ -49,6 +54,19 @@ public class CacheDispatcher extends Thread {
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
+    /** Where stage timings and counters are recorded. */
+    private final VolleyMetrics mMetrics = VolleyMetrics.getDefault();
+
+    /**
+     * Whether this dispatcher serves several queues through a {@link DispatcherPool}, in which
+     * case the cache and delivery are taken from each request's {@link RequestQueue}.
+     */
+    private final boolean mShared;
+
+    /** Caches of attached queues that have already been initialized; shared mode only. */
+    private final Set<Cache> mInitializedCaches =
+            Collections.newSetFromMap(new IdentityHashMap<Cache, Boolean>());
+
     /**
      * Creates a new cache triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -65,6 +83,20 @@ public class CacheDispatcher extends Thread {
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mShared = false;
+    }
+
+    /**
+     * Creates a cache triage dispatcher for a {@link DispatcherPool}, resolving the cache and
+     * delivery of every request from the queue it was added to.
+     */
+    CacheDispatcher(BlockingQueue<Request<?>> cacheQueue,
+            BlockingQueue<Request<?>> networkQueue) {
+        mCacheQueue = cacheQueue;
+        mNetworkQueue = networkQueue;
+        mCache = null;
+        mDelivery = null;
+        mShared = true;
     }
 
     /**
@@ -89,45 +121,63 @@ public class CacheDispatcher extends Thread {
                 // Get a request from the cache triage queue, blocking until
                 // at least one is available.
                 final Request<?> request = mCacheQueue.take();
-                request.addMarker("cache-queue-take");
+                request.addMarker(Marker.CACHE_QUEUE_TAKE);
+                mMetrics.recordQueueWait(request, VolleyMetrics.Stage.CACHE_QUEUE_WAIT);
 
                 // If the request has been canceled, don't bother dispatching it.
                 if (request.isCanceled()) {
-                    request.finish("cache-discard-canceled");
+                    request.finish(Marker.CACHE_DISCARD_CANCELED);
                     continue;
                 }
 
-                // Attempt to retrieve this item from cache.
-                Cache.Entry entry = mCache != null ? mCache.get(request.getCacheKey()) : null;
+                final Cache cache = getCache(request);
+                final ResponseDelivery delivery = getDelivery(request);
+
+                // Use the entry a finished duplicate handed over, or retrieve it from cache.
+                Cache.Entry entry = request.takeHandoffEntry();
+                if (entry != null) {
+                    request.addMarker(Marker.CACHE_HANDOFF);
+                } else if (cache != null) {
+                    long lookupStart = mMetrics.startTimer();
+                    entry = cache.get(request.getCacheKey());
+                    mMetrics.record(request, VolleyMetrics.Stage.CACHE_LOOKUP, lookupStart);
+                }
                 if (entry == null) {
-                    request.addMarker("cache-miss");
+                    request.addMarker(Marker.CACHE_MISS);
+                    mMetrics.count(request, VolleyMetrics.Counter.CACHE_MISS);
                     // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
+                    dispatchToNetwork(request);
                     continue;
                 }
 
                 // If it is completely expired, just send it to the network.
                 if (entry.isExpired()) {
-                    request.addMarker("cache-hit-expired");
+                    request.addMarker(Marker.CACHE_HIT_EXPIRED);
+                    mMetrics.count(request, VolleyMetrics.Counter.CACHE_EXPIRED);
                     request.setCacheEntry(entry);
-                    mNetworkQueue.put(request);
+                    dispatchToNetwork(request);
                     continue;
                 }
 
                 // We have a cache hit; parse its data for delivery back to the request.
-                request.addMarker("cache-hit");
+                request.addMarker(Marker.CACHE_HIT);
+                mMetrics.count(request, VolleyMetrics.Counter.CACHE_HIT);
+                long parseStart = mMetrics.startTimer();
                 Response<?> response = request.parseNetworkResponse(
                         new NetworkResponse(entry.data, entry.responseHeaders));
-                request.addMarker("cache-hit-parsed");
+                mMetrics.record(request, VolleyMetrics.Stage.PARSE, parseStart);
+                request.addMarker(Marker.CACHE_HIT_PARSED);
 
                 if (!entry.refreshNeeded()) {
                     // Completely unexpired cache hit. Just deliver the response.
-                    mDelivery.postResponse(request, response);
+                    request.setHandoff(entry, response);
+                    delivery.postResponse(request, response);
                 } else {
                     // Soft-expired cache hit. We can deliver the cached response,
                     // but we need to also send the request to the network for
                     // refreshing.
-                    request.addMarker("cache-hit-refresh-needed");
+                    request.addMarker(Marker.CACHE_HIT_REFRESH_NEEDED);
+                    mMetrics.count(request, VolleyMetrics.Counter.CACHE_REFRESH);
                     request.setCacheEntry(entry);
 
                     // Mark the response as intermediate.
@@ -135,11 +185,11 @@ public class CacheDispatcher extends Thread {
 
                     // Post the intermediate response back to the user and have
                     // the delivery then forward the request along to the network.
-                    mDelivery.postResponse(request, response, new Runnable() {
+                    delivery.postResponse(request, response, new Runnable() {
                         @Override
                         public void run() {
                             try {
-                                mNetworkQueue.put(request);
+                                dispatchToNetwork(request);
                             } catch (InterruptedException e) {
                                 // Not much we can do about this.
                             }
@@ -156,4 +206,31 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    private void dispatchToNetwork(Request<?> request) throws InterruptedException {
+        mMetrics.markQueued(request);
+        RequestQueue owner = request.getRequestQueue();
+        if (owner != null) {
+            owner.getNetworkQueue(request).put(request);
+        } else {
+            mNetworkQueue.put(request);
+        }
+    }
+
+    private Cache getCache(Request<?> request) {
+        if (!mShared) {
+            return mCache;
+        }
+        Cache cache = request.getRequestQueue().getCache();
+        if (cache != null && mInitializedCaches.add(cache)) {
+            // First request for this queue; make the same blocking call a dedicated
+            // dispatcher makes on startup.
+            cache.initialize();
+        }
+        return cache;
+    }
+
+    private ResponseDelivery getDelivery(Request<?> request) {
+        return mShared ? request.getRequestQueue().getDelivery() : mDelivery;
+    }
 }
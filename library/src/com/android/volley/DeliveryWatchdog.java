@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the callbacks Volley runs on the delivery thread, usually the main thread, so that
+ * jank can be attributed to the requests whose listeners caused it.
+ *
+ * <p>{@link ExecutorDelivery} times every delivery and
+ * {@link com.android.volley.toolbox.ImageLoader} every batched image response. Time is
+ * aggregated per request class and tag; deliveries longer than the frame budget are logged and
+ * passed to the {@link SlowDeliveryListener}, if any. Read the aggregate with
+ * {@link #getReport()}.</p>
+ */
+public class DeliveryWatchdog {
+
+    /** Frame budget at 60 fps. */
+    public static final long DEFAULT_FRAME_BUDGET_MS = 16;
+
+    /** Upper bound on the number of distinct keys. */
+    private static final int MAX_KEYS = 256;
+
+    /** Key used once {@link #MAX_KEYS} is reached. */
+    private static final String OTHER = "*";
+
+    /** Stands for the null tag in {@link #mStats}. */
+    private static final Object NO_TAG = new Object();
+
+    private static final DeliveryWatchdog sDefault = new DeliveryWatchdog();
+
+    /**
+     * Notified of deliveries exceeding the frame budget.
+     */
+    public interface SlowDeliveryListener {
+        /**
+         * @param request The request whose callback was slow
+         * @param durationMs Time spent in the callback
+         */
+        void onSlowDelivery(Request<?> request, long durationMs);
+    }
+
+    /**
+     * Stats by request class, then by tag. Looking them up allocates nothing, as it runs in the
+     * timed delivery; their key is only formatted once.
+     */
+    private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<Object, Stats>> mStats =
+            new ConcurrentHashMap<Class<?>, ConcurrentHashMap<Object, Stats>>();
+    private final AtomicInteger mKeyCount = new AtomicInteger();
+    private final Stats mOther = new Stats(OTHER);
+    private volatile boolean mEnabled = true;
+    private volatile long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_MS * 1000000;
+    private volatile SlowDeliveryListener mListener;
+
+    /**
+     * Returns the watchdog deliveries are timed by.
+     */
+    public static DeliveryWatchdog getDefault() {
+        return sDefault;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Sets the time a single delivery may take before it is reported as slow.
+     */
+    public void setFrameBudgetMs(long budgetMs) {
+        mFrameBudgetNanos = budgetMs * 1000000;
+    }
+
+    public long getFrameBudgetMs() {
+        return mFrameBudgetNanos / 1000000;
+    }
+
+    public void setSlowDeliveryListener(SlowDeliveryListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the current time to pass to {@link #end(Request, long)}, or 0 if disabled.
+     */
+    public long begin() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a delivery for the request that started at <code>startNanos</code>.
+     */
+    public void end(Request<?> request, long startNanos) {
+        if (startNanos == 0) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        getStats(request).record(durationNanos, mFrameBudgetNanos);
+        if (durationNanos > mFrameBudgetNanos) {
+            long durationMs = durationNanos / 1000000;
+            VolleyLog.d("Slow delivery (%d ms) for %s", durationMs, request);
+            SlowDeliveryListener listener = mListener;
+            if (listener != null) {
+                listener.onSlowDelivery(request, durationMs);
+            }
+        }
+    }
+
+    /**
+     * Returns the time spent in deliveries per request class and tag, most expensive first.
+     */
+    public List<Entry> getReport() {
+        List<Entry> report = new ArrayList<Entry>(mKeyCount.get() + 1);
+        for (Map<Object, Stats> byTag : mStats.values()) {
+            for (Stats stats : byTag.values()) {
+                report.add(stats.toEntry());
+            }
+        }
+        if (mOther.count.get() > 0) {
+            report.add(mOther.toEntry());
+        }
+        Collections.sort(report, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.totalMs < rhs.totalMs ? 1 : (lhs.totalMs == rhs.totalMs ? 0 : -1);
+            }
+        });
+        return report;
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public void reset() {
+        mStats.clear();
+        mKeyCount.set(0);
+        mOther.clear();
+    }
+
+    private Stats getStats(Request<?> request) {
+        Object tag = request.getTag();
+        Object tagKey;
+        if (tag == null) {
+            tagKey = NO_TAG;
+        } else if (tag instanceof String || tag instanceof Number) {
+            tagKey = tag;
+        } else if (tag instanceof CharSequence) {
+            tagKey = tag.toString();
+        } else {
+            // Tags may be activities that mustn't be referenced.
+            tagKey = tag.getClass();
+        }
+        Class<?> requestClass = request.getClass();
+        ConcurrentHashMap<Object, Stats> byTag = mStats.get(requestClass);
+        if (byTag == null) {
+            ConcurrentHashMap<Object, Stats> newByTag = new ConcurrentHashMap<Object, Stats>();
+            byTag = mStats.putIfAbsent(requestClass, newByTag);
+            if (byTag == null) {
+                byTag = newByTag;
+            }
+        }
+        Stats stats = byTag.get(tagKey);
+        if (stats == null) {
+            if (mKeyCount.get() >= MAX_KEYS) {
+                return mOther;
+            }
+            Stats newStats = new Stats(getKey(requestClass, tagKey));
+            stats = byTag.putIfAbsent(tagKey, newStats);
+            if (stats == null) {
+                mKeyCount.incrementAndGet();
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the request class followed by its tag, or the tag's class for tags that aren't
+     * strings or numbers.
+     */
+    private static String getKey(Class<?> requestClass, Object tagKey) {
+        String name = requestClass.getSimpleName();
+        if (tagKey == NO_TAG) {
+            return name;
+        }
+        if (tagKey instanceof Class) {
+            return name + " " + ((Class<?>) tagKey).getSimpleName();
+        }
+        return name + " " + tagKey;
+    }
+
+    /**
+     * Aggregated deliveries of one request class and tag.
+     */
+    public static class Entry {
+        /** Request class and tag. */
+        public final String key;
+        public final long count;
+        /** Deliveries that exceeded the frame budget. */
+        public final long slowCount;
+        public final long totalMs;
+        public final long maxMs;
+
+        Entry(String key, long count, long slowCount, long totalMs, long maxMs) {
+            this.key = key;
+            this.count = count;
+            this.slowCount = slowCount;
+            this.totalMs = totalMs;
+            this.maxMs = maxMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d ms in %d deliveries (%d slow, max %d ms)",
+                    key, totalMs, count, slowCount, maxMs);
+        }
+    }
+
+    private static class Stats {
+        final String key;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong slowCount = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        Stats(String key) {
+            this.key = key;
+        }
+
+        void record(long durationNanos, long budgetNanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(durationNanos);
+            if (durationNanos > budgetNanos) {
+                slowCount.incrementAndGet();
+            }
+            long max;
+            while (durationNanos > (max = maxNanos.get())
+                    && !maxNanos.compareAndSet(max, durationNanos)) {
+                // Retry until the maximum sticks.
+            }
+        }
+
+        void clear() {
+            count.set(0);
+            slowCount.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        Entry toEntry() {
+            return new Entry(key, count.get(), slowCount.get(), totalNanos.get() / 1000000,
+                    maxNanos.get() / 1000000);
+        }
+    }
+}
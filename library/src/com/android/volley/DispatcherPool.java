@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of cache and network dispatchers shared by several {@link RequestQueue}s.
+ *
+ * <p>Every attached queue keeps its own {@link Cache}, {@link Network} and
+ * {@link ResponseDelivery}, but all of them feed the same priority-ordered cache and network
+ * queues. This puts a single budget on the number of dispatcher threads in the process and
+ * orders requests by priority across queues, not just within one.</p>
+ *
+ * <p>The dispatchers are started when the first queue is started and stopped when the last one
+ * is stopped.</p>
+ */
+public class DispatcherPool {
+
+    /** Number of network request dispatcher threads to start. */
+    private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+
+    private static DispatcherPool sDefault;
+
+    /** Used for generating monotonically-increasing sequence numbers across queues. */
+    private final AtomicInteger mSequenceGenerator = new AtomicInteger();
+
+    /** The shared cache triage queue. */
+    private final BlockingQueue<Request<?>> mCacheQueue = new PriorityLevelQueue();
+
+    /** The shared queue of requests that are actually going out to the network. */
+    private final BlockingQueue<Request<?>> mNetworkQueue = new PriorityLevelQueue();
+
+    /** The shared queue of requests for local content. */
+    private final BlockingQueue<Request<?>> mLocalQueue = new PriorityLevelQueue();
+
+    /** The queues currently attached to this pool. */
+    private final Set<RequestQueue> mAttachedQueues = new HashSet<RequestQueue>();
+
+    /** The network dispatchers. */
+    private final NetworkDispatcher[] mDispatchers;
+
+    /** The local content dispatchers. */
+    private final LocalDispatcher[] mLocalDispatchers;
+
+    /** The cache dispatcher. */
+    private CacheDispatcher mCacheDispatcher;
+
+    /**
+     * Returns the process-wide pool used by {@link Volley#newRequestQueue(android.content.Context)}.
+     */
+    public static synchronized DispatcherPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new DispatcherPool(DEFAULT_NETWORK_THREAD_POOL_SIZE);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Creates a pool. Threads are not started until a queue using it is started.
+     *
+     * @param threadPoolSize Number of network dispatcher threads shared by all queues
+     */
+    public DispatcherPool(int threadPoolSize) {
+        this(threadPoolSize, RequestQueue.DEFAULT_LOCAL_THREAD_POOL_SIZE);
+    }
+
+    /**
+     * Creates a pool. Threads are not started until a queue using it is started.
+     *
+     * @param threadPoolSize Number of network dispatcher threads shared by all queues
+     * @param localThreadPoolSize Number of local content dispatcher threads shared by all queues
+     */
+    public DispatcherPool(int threadPoolSize, int localThreadPoolSize) {
+        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mLocalDispatchers = new LocalDispatcher[localThreadPoolSize];
+    }
+
+    /**
+     * Gets the number of network dispatcher threads.
+     */
+    public int getThreadPoolSize() {
+        return mDispatchers.length;
+    }
+
+    /**
+     * Returns the number of queues currently attached.
+     */
+    public synchronized int getAttachedQueueCount() {
+        return mAttachedQueues.size();
+    }
+
+    /**
+     * Gets a sequence number that orders requests across all attached queues.
+     */
+    int getSequenceNumber() {
+        return mSequenceGenerator.incrementAndGet();
+    }
+
+    BlockingQueue<Request<?>> getCacheQueue() {
+        return mCacheQueue;
+    }
+
+    BlockingQueue<Request<?>> getNetworkQueue() {
+        return mNetworkQueue;
+    }
+
+    BlockingQueue<Request<?>> getLocalQueue() {
+        return mLocalQueue;
+    }
+
+    /**
+     * Called from {@link RequestQueue#start()}; starts the dispatchers for the first queue.
+     */
+    synchronized void attach(RequestQueue queue) {
+        if (mAttachedQueues.add(queue) && mAttachedQueues.size() == 1) {
+            mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue);
+            mCacheDispatcher.start();
+            for (int i = 0; i < mDispatchers.length; i++) {
+                mDispatchers[i] = new NetworkDispatcher(mNetworkQueue);
+                mDispatchers[i].start();
+            }
+            for (int i = 0; i < mLocalDispatchers.length; i++) {
+                mLocalDispatchers[i] = new LocalDispatcher(mLocalQueue);
+                mLocalDispatchers[i].start();
+            }
+        }
+    }
+
+    /**
+     * Called from {@link RequestQueue#stop()}; stops the dispatchers once no queue is left.
+     * Requests of a detached queue that are still waiting are processed as long as the
+     * dispatchers keep running.
+     */
+    synchronized void detach(RequestQueue queue) {
+        if (mAttachedQueues.remove(queue) && mAttachedQueues.isEmpty()) {
+            if (mCacheDispatcher != null) {
+                mCacheDispatcher.quit();
+                mCacheDispatcher = null;
+            }
+            for (int i = 0; i < mDispatchers.length; i++) {
+                if (mDispatchers[i] != null) {
+                    mDispatchers[i].quit();
+                    mDispatchers[i] = null;
+                }
+            }
+            for (int i = 0; i < mLocalDispatchers.length; i++) {
+                if (mLocalDispatchers[i] != null) {
+                    mLocalDispatchers[i].quit();
+                    mLocalDispatchers[i] = null;
+                }
+            }
+        }
+    }
+}
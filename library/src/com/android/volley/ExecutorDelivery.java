@@ -20,6 +20,7 @@ import android.os.Handler;
 
 import java.util.concurrent.Executor;
 
+import com.android.volley.Request.Marker;
 import com.android.volley.error.VolleyError;
 
 /**
@@ -60,13 +61,13 @@ public class ExecutorDelivery implements ResponseDelivery {
     @Override
     public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
         request.markDelivered();
-        request.addMarker("post-response");
+        request.addMarker(Marker.POST_RESPONSE);
         mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, runnable));
     }
 
     @Override
     public void postError(Request<?> request, VolleyError error) {
-        request.addMarker("post-error");
+        request.addMarker(Marker.POST_ERROR);
         Response<?> response = Response.error(error);
         mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, null));
     }
@@ -80,11 +81,13 @@ public class ExecutorDelivery implements ResponseDelivery {
         private final Request mRequest;
         private final Response mResponse;
         private final Runnable mRunnable;
+        private final long mPostedNanos;
 
         public ResponseDeliveryRunnable(Request request, Response response, Runnable runnable) {
             mRequest = request;
             mResponse = response;
             mRunnable = runnable;
+            mPostedNanos = VolleyMetrics.getDefault().startTimer();
         }
 
         @SuppressWarnings("unchecked")
@@ -92,29 +95,34 @@ public class ExecutorDelivery implements ResponseDelivery {
         public void run() {
             // If this request has canceled, finish it and don't deliver.
             if (mRequest.isCanceled()) {
-                mRequest.finish("canceled-at-delivery");
+                mRequest.finish(Marker.CANCELED_AT_DELIVERY);
                 return;
             }
 
+            DeliveryWatchdog watchdog = DeliveryWatchdog.getDefault();
+            long deliveryStart = watchdog.begin();
+
             // Deliver a normal response or error, depending.
             if (mResponse.isSuccess()) {
                 mRequest.deliverResponse(mResponse.result);
             } else {
                 mRequest.deliverError(mResponse.error);
             }
+            VolleyMetrics.getDefault().record(mRequest, VolleyMetrics.Stage.DELIVERY, mPostedNanos);
 
             // If this is an intermediate response, add a marker, otherwise we're done
             // and the request can be finished.
             if (mResponse.intermediate) {
-                mRequest.addMarker("intermediate-response");
+                mRequest.addMarker(Marker.INTERMEDIATE_RESPONSE);
             } else {
-                mRequest.finish("done");
+                mRequest.finish(Marker.DONE);
             }
 
             // If we have been provided a post-delivery runnable, run it.
             if (mRunnable != null) {
                 mRunnable.run();
             }
+            watchdog.end(mRequest, deliveryStart);
        }
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.VolleyLog.MarkerLog;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Always-on recorder of the marker timelines of the last finished requests, for finding out
+ * after the fact why something was slow.
+ *
+ * <p>Every request records the markers passed to {@link Request#addMarker(int)} with their
+ * time and thread, which costs a few array writes per marker. When the request finishes its
+ * marker log replaces the oldest one in a ring buffer. Call {@link #writeChromeTrace(Writer)} to
+ * dump the buffer in the Chrome trace event format, which can be opened in Perfetto or
+ * chrome://tracing: each request is an async track of its own, with a slice for the whole
+ * request and nested in it one for the time leading up to each marker. As the steps of a request
+ * run on different threads, the thread that added a marker is an argument of its slice.</p>
+ */
+public class FlightRecorder {
+
+    /** Number of timelines kept unless {@link #setCapacity(int)} is called. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final FlightRecorder sDefault = new FlightRecorder(DEFAULT_CAPACITY);
+
+    private volatile AtomicReferenceArray<MarkerLog> mLogs;
+    private final AtomicLong mNext = new AtomicLong();
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Returns the recorder requests record to.
+     */
+    public static FlightRecorder getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @param capacity Number of request timelines to keep
+     */
+    public FlightRecorder(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Sets the number of request timelines to keep, discarding those recorded so far.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mLogs = new AtomicReferenceArray<MarkerLog>(capacity);
+    }
+
+    public int getCapacity() {
+        return mLogs.length();
+    }
+
+    /**
+     * Enables or disables recording. Requests created while recording is disabled are never
+     * recorded.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Discards all recorded timelines.
+     */
+    public void clear() {
+        setCapacity(getCapacity());
+    }
+
+    /**
+     * Stores the marker log of a finished request, evicting the oldest one.
+     */
+    void record(Request<?> request, MarkerLog log) {
+        long id = mNext.getAndIncrement();
+        log.setRequest(request.getClass(), request.getUrl(), id);
+        AtomicReferenceArray<MarkerLog> logs = mLogs;
+        logs.set((int) (id % logs.length()), log);
+    }
+
+    /**
+     * Returns the recorded timelines as a Chrome trace event JSON document.
+     */
+    public String dumpChromeTrace() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeChromeTrace(writer);
+        } catch (IOException e) {
+            // StringWriter doesn't throw.
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes the recorded timelines as a Chrome trace event JSON document.
+     */
+    public void writeChromeTrace(Writer writer) throws IOException {
+        AtomicReferenceArray<MarkerLog> logs = mLogs;
+        writer.write("{\"traceEvents\":[");
+        boolean first = true;
+        for (int i = 0; i < logs.length(); i++) {
+            MarkerLog log = logs.get(i);
+            if (log == null) {
+                continue;
+            }
+            synchronized (log) {
+                first = writeEvents(writer, first, log);
+            }
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    private static boolean writeEvents(Writer writer, boolean first, MarkerLog log)
+            throws IOException {
+        int size = log.size();
+        if (size == 0) {
+            return first;
+        }
+        long id = log.getId();
+        String label = log.getRequestClass().getSimpleName() + " #" + id;
+        // The whole request, enclosing the steps that share its id.
+        first = writeSeparator(writer, first);
+        writeAsync(writer, "b", id, log.getTimeNanos(0), label, "url",
+                log.getUrl() != null ? log.getUrl() : "");
+
+        // The time leading up to each marker, labelled with the thread that added it.
+        for (int i = 1; i < size; i++) {
+            String name = log.getName(i);
+            first = writeSeparator(writer, first);
+            writeAsync(writer, "b", id, log.getTimeNanos(i - 1), name, "thread",
+                    log.getThreadName(i));
+            first = writeSeparator(writer, first);
+            writeAsync(writer, "e", id, log.getTimeNanos(i), name, null, null);
+        }
+
+        first = writeSeparator(writer, first);
+        writeAsync(writer, "e", id, log.getTimeNanos(size - 1), label, null, null);
+        return first;
+    }
+
+    private static void writeAsync(Writer writer, String phase, long id, long timeNanos,
+            String name, String argName, String argValue) throws IOException {
+        writer.write("{\"ph\":\"");
+        writer.write(phase);
+        writer.write("\",\"cat\":\"request\",\"pid\":1,\"id\":");
+        writer.write(String.valueOf(id));
+        writer.write(",\"ts\":");
+        writer.write(String.valueOf(timeNanos / 1000));
+        writer.write(",\"name\":");
+        writeString(writer, name);
+        if (argName != null) {
+            writer.write(",\"args\":{");
+            writeString(writer, argName);
+            writer.write(':');
+            writeString(writer, argValue);
+            writer.write('}');
+        }
+        writer.write('}');
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean first) throws IOException {
+        if (!first) {
+            writer.write(',');
+        }
+        return false;
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.android.volley.misc.LatencyHistogram;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns per-host latency distributions from observed request timings.
+ *
+ * <p>One estimator is meant to be shared by many {@link AdaptiveRetryPolicy} instances, so that
+ * every request to a host benefits from what earlier requests to that host observed. Old samples
+ * are periodically decayed so the estimate follows changes in network conditions.</p>
+ *
+ * <p>Timed out attempts are censored samples: their latency is only known to be above the time
+ * waited. They count towards the number of samples, and are assumed slower than any completed
+ * sample, but their bound is only reported when a percentile lies beyond every completed
+ * sample.</p>
+ */
+public class LatencyEstimator {
+
+    /** Number of samples per host after which older samples are halved. */
+    private static final int DEFAULT_WINDOW_SIZE = 256;
+
+    /** Upper bound on the number of hosts tracked at once. */
+    private static final int MAX_HOSTS = 64;
+
+    /** Longest latency told apart from longer ones, well beyond any timeout. */
+    private static final long MAX_LATENCY_MS = 1L << 17;
+
+    private static final LatencyEstimator sDefault = new LatencyEstimator();
+
+    private final ConcurrentHashMap<String, HostStats> mHosts =
+            new ConcurrentHashMap<String, HostStats>();
+
+    private final int mWindowSize;
+
+    /**
+     * Returns the process-wide estimator used by default.
+     */
+    public static LatencyEstimator getDefault() {
+        return sDefault;
+    }
+
+    public LatencyEstimator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize Number of samples per host after which older samples are halved
+     */
+    public LatencyEstimator(int windowSize) {
+        mWindowSize = windowSize;
+    }
+
+    /**
+     * Records the time it took to receive a complete response from the given host.
+     */
+    public void recordResponse(String host, long timeMs) {
+        HostStats stats = getStats(host);
+        if (stats != null) {
+            stats.record(stats.response, stats.responseTimeouts, timeMs, false);
+        }
+    }
+
+    /**
+     * Records an attempt that timed out after <code>waitedMs</code>, which is a lower bound on
+     * its latency.
+     */
+    public void recordTimeout(String host, long waitedMs) {
+        HostStats stats = getStats(host);
+        if (stats != null) {
+            stats.record(stats.response, stats.responseTimeouts, waitedMs, true);
+        }
+    }
+
+    /**
+     * Records the time it took to establish a connection to the given host.
+     */
+    public void recordConnect(String host, long timeMs) {
+        HostStats stats = getStats(host);
+        if (stats != null) {
+            stats.record(stats.connect, stats.connectTimeouts, timeMs, false);
+        }
+    }
+
+    /**
+     * Records a connection attempt that timed out after <code>waitedMs</code>, which is a lower
+     * bound on the connect time.
+     */
+    public void recordConnectTimeout(String host, long waitedMs) {
+        HostStats stats = getStats(host);
+        if (stats != null) {
+            stats.record(stats.connect, stats.connectTimeouts, waitedMs, true);
+        }
+    }
+
+    /**
+     * Returns the given percentile of full response times for the host, or -1 if fewer
+     * than <code>minSamples</code> have been observed.
+     */
+    public long getResponsePercentile(String host, double percentile, int minSamples) {
+        HostStats stats = host == null ? null : mHosts.get(host);
+        return stats == null ? -1
+                : percentile(stats.response, stats.responseTimeouts, percentile, minSamples);
+    }
+
+    /**
+     * Returns the given percentile of connect times for the host, or -1 if fewer
+     * than <code>minSamples</code> have been observed.
+     */
+    public long getConnectPercentile(String host, double percentile, int minSamples) {
+        HostStats stats = host == null ? null : mHosts.get(host);
+        return stats == null ? -1
+                : percentile(stats.connect, stats.connectTimeouts, percentile, minSamples);
+    }
+
+    /**
+     * Forgets everything learned so far.
+     */
+    public void clear() {
+        mHosts.clear();
+    }
+
+    /**
+     * Returns the host component of the given URL, or null if there is none.
+     */
+    public static String getHost(String url) {
+        if (TextUtils.isEmpty(url)) {
+            return null;
+        }
+        Uri uri = Uri.parse(url);
+        return uri == null ? null : uri.getHost();
+    }
+
+    /**
+     * Returns the percentile of completed and censored samples together, assuming that every
+     * censored sample is slower than every completed one.
+     */
+    private static long percentile(LatencyHistogram completed, LatencyHistogram censored,
+            double percentile, int minSamples) {
+        long completedCount = completed.getCount();
+        long total = completedCount + censored.getCount();
+        if (total < Math.max(1, minSamples)) {
+            return -1;
+        }
+        double rank = percentile * total;
+        if (rank <= completedCount) {
+            return completed.getPercentile(rank / completedCount);
+        }
+        // Beyond every completed sample: the largest bound waited for is the best estimate.
+        return Math.max(completed.getPercentile(1d), censored.getPercentile(1d));
+    }
+
+    private HostStats getStats(String host) {
+        if (host == null) {
+            return null;
+        }
+        HostStats stats = mHosts.get(host);
+        if (stats == null) {
+            if (mHosts.size() >= MAX_HOSTS) {
+                // Simplest possible eviction; hosts that matter are relearned quickly.
+                mHosts.clear();
+            }
+            HostStats newStats = new HostStats();
+            stats = mHosts.putIfAbsent(host, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private class HostStats {
+        private final LatencyHistogram[] mHistograms = LatencyHistogram.newGroup(4, 3,
+                MAX_LATENCY_MS);
+        final LatencyHistogram response = mHistograms[0];
+        /** Lower bounds of the responses that timed out. */
+        final LatencyHistogram responseTimeouts = mHistograms[1];
+        final LatencyHistogram connect = mHistograms[2];
+        /** Lower bounds of the connects that timed out. */
+        final LatencyHistogram connectTimeouts = mHistograms[3];
+
+        void record(LatencyHistogram completed, LatencyHistogram censored, long timeMs,
+                boolean timedOut) {
+            (timedOut ? censored : completed).record(timeMs);
+            if (completed.getCount() + censored.getCount() > mWindowSize) {
+                completed.decay();
+                censored.decay();
+            }
+        }
+    }
+}
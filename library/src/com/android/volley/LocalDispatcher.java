@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import com.android.volley.Request.Marker;
+import com.android.volley.error.VolleyError;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Provides a thread for resolving requests for local content (file, content, resource and
+ * video URLs, see {@link com.android.volley.misc.Utils#isSpecialType(String)}).
+ *
+ * Such requests are parsed straight from their source, so they skip the network-only stages of
+ * a {@link NetworkDispatcher}: there is no {@link Network} call, no retry policy and no traffic
+ * tagging. Keeping them on their own threads means local thumbnails never wait behind remote
+ * downloads nor take network slots. Cache and delivery are resolved from each request's
+ * {@link RequestQueue}.
+ */
+public class LocalDispatcher extends Thread {
+    /** The queue of requests to service. */
+    private final BlockingQueue<Request<?>> mQueue;
+    /** Used for telling us to die. */
+    private volatile boolean mQuit = false;
+    /** Where stage timings and counters are recorded. */
+    private final VolleyMetrics mMetrics = VolleyMetrics.getDefault();
+
+    /**
+     * Creates a new local dispatcher thread.  You must call {@link #start()}
+     * in order to begin processing.
+     *
+     * @param queue Queue of incoming local requests
+     */
+    public LocalDispatcher(BlockingQueue<Request<?>> queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately.  If any requests are still in
+     * the queue, they are not guaranteed to be processed.
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Request<?> request;
+            try {
+                // Take a request from the queue.
+                request = mQueue.take();
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    return;
+                }
+                continue;
+            }
+
+            final RequestQueue owner = request.getRequestQueue();
+            final ResponseDelivery delivery = owner.getDelivery();
+            try {
+                request.addMarker(Marker.LOCAL_QUEUE_TAKE);
+                mMetrics.recordQueueWait(request, VolleyMetrics.Stage.LOCAL_QUEUE_WAIT);
+
+                if (request.isCanceled()) {
+                    request.finish(Marker.LOCAL_DISCARD_CANCELLED);
+                    continue;
+                }
+
+                // Local requests parse their content from the URL itself.
+                long parseStart = mMetrics.startTimer();
+                Response<?> response = request.parseNetworkResponse(
+                        new NetworkResponse(0, null, null, false));
+                mMetrics.record(request, VolleyMetrics.Stage.PARSE, parseStart);
+                request.addMarker(Marker.LOCAL_PARSE_COMPLETE);
+
+                Cache cache = owner.getCache();
+                if (cache != null && request.shouldCache() && response.cacheEntry != null) {
+                    long writeStart = mMetrics.startTimer();
+                    cache.put(request.getCacheKey(), response.cacheEntry);
+                    mMetrics.record(request, VolleyMetrics.Stage.CACHE_WRITE, writeStart);
+                    request.addMarker(Marker.LOCAL_CACHE_WRITTEN);
+                }
+
+                request.markDelivered();
+                delivery.postResponse(request, response);
+            } catch (Exception e) {
+                VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                mMetrics.count(request, VolleyMetrics.Counter.ERROR);
+                delivery.postError(request, new VolleyError(e));
+            }
+        }
+    }
+}
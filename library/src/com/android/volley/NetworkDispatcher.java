@@ -22,6 +22,7 @@ import android.os.Build;
 import android.os.Process;
 import android.os.SystemClock;
 
+import com.android.volley.Request.Marker;
 import com.android.volley.error.VolleyError;
 import com.android.volley.misc.Utils;
 
@@ -46,6 +47,15 @@ public class NetworkDispatcher extends Thread {
     private final ResponseDelivery mDelivery;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
+    /** Where stage timings and counters are recorded. */
+    private final VolleyMetrics mMetrics = VolleyMetrics.getDefault();
+    /**
+     * Whether this dispatcher serves several queues through a {@link DispatcherPool}, in which
+     * case network, cache and delivery are taken from each request's {@link RequestQueue}.
+     */
+    private final boolean mShared;
+    /** The lane this dispatcher serves, or null if it serves a plain queue. */
+    private final NetworkLane mLane;
 
     /**
      * Creates a new network dispatcher thread.  You must call {@link #start()}
@@ -63,6 +73,34 @@ public class NetworkDispatcher extends Thread {
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mShared = false;
+        mLane = null;
+    }
+
+    /**
+     * Creates a network dispatcher for a {@link DispatcherPool}, resolving network, cache and
+     * delivery of every request from the queue it was added to.
+     */
+    NetworkDispatcher(BlockingQueue<Request<?>> queue) {
+        mQueue = queue;
+        mNetwork = null;
+        mCache = null;
+        mDelivery = null;
+        mShared = true;
+        mLane = null;
+    }
+
+    /**
+     * Creates a network dispatcher for a {@link NetworkLane}. Requests may be borrowed from
+     * other lanes, so collaborators are resolved per request as in the shared case.
+     */
+    NetworkDispatcher(NetworkLane lane) {
+        mQueue = lane.getQueue();
+        mNetwork = null;
+        mCache = null;
+        mDelivery = null;
+        mShared = true;
+        mLane = lane;
     }
 
     /**
@@ -90,7 +128,7 @@ public class NetworkDispatcher extends Thread {
             Request<?> request;
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                request = mLane != null ? mLane.take() : mQueue.take();
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -100,28 +138,44 @@ public class NetworkDispatcher extends Thread {
             }
 
             try {
-                request.addMarker("network-queue-take");
+                request.addMarker(Marker.NETWORK_QUEUE_TAKE);
+                mMetrics.recordQueueWait(request, VolleyMetrics.Stage.NETWORK_QUEUE_WAIT);
 
                 // If the request was cancelled already, do not perform the
                 // network request.
                 if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
+                    request.finish(Marker.NETWORK_DISCARD_CANCELLED);
                     continue;
                 }
 
+                final RequestQueue owner = mShared ? request.getRequestQueue() : null;
+                final Network network = owner != null ? owner.getNetwork() : mNetwork;
+                final Cache cache = owner != null ? owner.getCache() : mCache;
+
                 addTrafficStatsTag(request);
 
-                //Not Local images
+                // Local content is normally routed to a LocalDispatcher by the RequestQueue;
+                // this only handles it for dispatchers fed from a plain queue.
                 NetworkResponse networkResponse;
 				if (!Utils.isSpecialType(request.getUrl())){
 	                // Perform the network request.
-					networkResponse = mNetwork.performRequest(request);
-	                request.addMarker("network-http-complete");
+	                mMetrics.count(request, VolleyMetrics.Counter.NETWORK_REQUEST);
+	                long networkStart = mMetrics.startTimer();
+					networkResponse = network.performRequest(request);
+	                mMetrics.record(request, VolleyMetrics.Stage.NETWORK, networkStart);
+	                request.addMarker(Marker.NETWORK_HTTP_COMPLETE);
+
+	                // The request may have been canceled while it was on the network.
+	                if (request.isCanceled()) {
+	                    deleteBodyFile(networkResponse);
+	                    request.finish(Marker.NETWORK_DISCARD_CANCELLED);
+	                    continue;
+	                }
 
 	                // If the server returned 304 AND we delivered a response already,
 	                // we're done -- don't deliver a second identical response.
 	                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-	                    request.finish("not-modified");
+	                    request.finish(Marker.NOT_MODIFIED);
 	                    continue;
 	                }
 				}
@@ -130,33 +184,62 @@ public class NetworkDispatcher extends Thread {
 				}
 
                 // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
+                Response<?> response;
+                long parseStart = mMetrics.startTimer();
+                try {
+                    response = request.parseNetworkResponse(networkResponse);
+                    mMetrics.record(request, VolleyMetrics.Stage.PARSE, parseStart);
+                } finally {
+                    // A spilled body is only valid while the request parses it.
+                    deleteBodyFile(networkResponse);
+                }
+                request.addMarker(Marker.NETWORK_PARSE_COMPLETE);
 
-                // Write to cache if applicable.
+                // Write to cache if applicable. Spilled bodies are never cached, as the
+                // entry would hold the empty in-memory body.
                 // TODO: Only update cache metadata instead of entire record for 304s.
-                if (mCache != null && request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
+                if (cache != null && request.shouldCache() && response.cacheEntry != null
+                        && networkResponse.bodyFile == null) {
+                    long writeStart = mMetrics.startTimer();
+                    cache.put(request.getCacheKey(), response.cacheEntry);
+                    mMetrics.record(request, VolleyMetrics.Stage.CACHE_WRITE, writeStart);
+                    request.addMarker(Marker.NETWORK_CACHE_WRITTEN);
+                    request.setHandoff(response.cacheEntry, response);
                 }
 
                 // Post the response back.
                 request.markDelivered();
-                mDelivery.postResponse(request, response);
+                getDelivery(request).postResponse(request, response);
             } catch (VolleyError volleyError) {
+                mMetrics.count(request, VolleyMetrics.Counter.ERROR);
                 volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
                 parseAndDeliverNetworkError(request, volleyError);
             } catch (Exception e) {
                 VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                mMetrics.count(request, VolleyMetrics.Counter.ERROR);
                 VolleyError volleyError = new VolleyError(e);
                 volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
+                getDelivery(request).postError(request, volleyError);
             }
         }
     }
 
+    /**
+     * Deletes the file a response body was spilled to, if any.
+     */
+    static void deleteBodyFile(NetworkResponse networkResponse) {
+        if (networkResponse.bodyFile != null && networkResponse.bodyFile.exists()
+                && !networkResponse.bodyFile.delete()) {
+            VolleyLog.d("Could not delete %s", networkResponse.bodyFile);
+        }
+    }
+
+    private ResponseDelivery getDelivery(Request<?> request) {
+        return mShared ? request.getRequestQueue().getDelivery() : mDelivery;
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
         error = request.parseNetworkError(error);
-        mDelivery.postError(request, error);
+        getDelivery(request).postError(request, error);
     }
 }
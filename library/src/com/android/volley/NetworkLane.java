@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A named network queue of a {@link RequestQueue} with dispatchers of its own, so that one kind
+ * of traffic (e.g. bulk transfers) can't occupy the threads another kind depends on.
+ */
+class NetworkLane {
+
+    private final String mName;
+    private final RequestQueue mOwner;
+    private final boolean mLendIdleThreads;
+    private final PriorityLevelQueue mQueue = new PriorityLevelQueue();
+    private final NetworkDispatcher[] mDispatchers;
+
+    /**
+     * @param name Name requests are routed by
+     * @param owner The queue this lane belongs to
+     * @param threadPoolSize Number of dispatcher threads reserved for this lane
+     * @param lendIdleThreads Whether idle dispatchers of this lane may serve other lanes
+     */
+    NetworkLane(String name, RequestQueue owner, int threadPoolSize, boolean lendIdleThreads) {
+        mName = name;
+        mOwner = owner;
+        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mLendIdleThreads = lendIdleThreads;
+        mQueue.setSignal(owner.getLaneSignal());
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    BlockingQueue<Request<?>> getQueue() {
+        return mQueue;
+    }
+
+    int getThreadPoolSize() {
+        return mDispatchers.length;
+    }
+
+    void start() {
+        for (int i = 0; i < mDispatchers.length; i++) {
+            mDispatchers[i] = new NetworkDispatcher(this);
+            mDispatchers[i].start();
+        }
+    }
+
+    void stop() {
+        for (int i = 0; i < mDispatchers.length; i++) {
+            if (mDispatchers[i] != null) {
+                mDispatchers[i].quit();
+                mDispatchers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Takes the next request for a dispatcher of this lane, blocking until one is available.
+     * Lending lanes prefer their own requests but pick up work of other lanes while idle,
+     * parking until any queue they can take from has an insert.
+     */
+    Request<?> take() throws InterruptedException {
+        if (!mLendIdleThreads) {
+            return mQueue.take();
+        }
+        PriorityLevelQueue.Signal signal = mOwner.getLaneSignal();
+        while (true) {
+            int generation = signal.beginWait();
+            try {
+                Request<?> request = mQueue.poll();
+                if (request == null) {
+                    request = mOwner.pollForLane(this);
+                }
+                if (request != null) {
+                    return request;
+                }
+                signal.await(generation);
+            } finally {
+                signal.endWait();
+            }
+        }
+    }
+}
@@ -18,6 +18,11 @@ package com.android.volley;
 
 import org.apache.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
@@ -40,6 +45,25 @@ public class NetworkResponse {
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
+        this.bodyFile = null;
+    }
+
+    /**
+     * Creates a new network response whose body was written to a file instead of memory.
+     * {@link #data} is empty for such responses.
+     * @param statusCode the HTTP status code
+     * @param bodyFile File holding the response body
+     * @param headers Headers returned with this response, or null for none
+     * @param networkTimeMs Round-trip network time to receive network response
+     */
+    public NetworkResponse(int statusCode, File bodyFile, Map<String, String> headers,
+            long networkTimeMs) {
+        this.statusCode = statusCode;
+        this.data = new byte[0];
+        this.headers = headers;
+        this.notModified = false;
+        this.networkTimeMs = networkTimeMs;
+        this.bodyFile = bodyFile;
     }
 
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
@@ -62,4 +86,17 @@ public class NetworkResponse {
     public final boolean notModified;
     /** Network roundtrip time in milliseconds. */
     public final long networkTimeMs;
+    /**
+     * File holding the body if it was spilled to disk, or null if the body is in {@link #data}.
+     * The file is deleted once the request has parsed the response; move it to keep it.
+     */
+    public final File bodyFile;
+
+    /**
+     * Opens the response body, wherever it is stored.
+     */
+    public InputStream openBody() throws IOException {
+        return bodyFile != null ? new FileInputStream(bodyFile)
+                : new ByteArrayInputStream(data != null ? data : new byte[0]);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded blocking queue of requests ordered by {@link Request.Priority}, built from one
+ * lock-free FIFO per priority level.
+ *
+ * <p>Unlike a {@link java.util.concurrent.PriorityBlockingQueue}, inserting and taking are O(1)
+ * and don't go through a single lock; the lock is only used to park consumers when every level
+ * is empty, and producers only touch it when a consumer is actually parked.</p>
+ *
+ * <p>Requests of a higher priority are always taken first, and requests of the same priority
+ * in sequence order. A request inserted again with a lower sequence number than one already
+ * inserted at its level, such as one whose priority changed or one released after waiting
+ * behind a duplicate, is kept in a small ordered set beside the FIFO and taken when its turn
+ * comes; that set is locked, but only while it holds requests. Requests without a sequence
+ * number are taken in the order they were inserted.</p>
+ */
+public class PriorityLevelQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /** One level per priority, indexed by {@link Request.Priority#ordinal()}. */
+    private final Level[] mLevels;
+
+    /** Number of consumers that are about to park or parked. */
+    private final AtomicInteger mWaiters = new AtomicInteger();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /** Also signalled on every insert, or null. */
+    private volatile Signal mSignal;
+
+    public PriorityLevelQueue() {
+        Request.Priority[] priorities = Request.Priority.values();
+        mLevels = new Level[priorities.length];
+        for (int i = 0; i < mLevels.length; i++) {
+            mLevels[i] = new Level();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        mLevels[request.getPriority().ordinal()].offer(request);
+        // The insert above and the read below pair with the increment and re-check in
+        // awaitRequest(), so either the consumer sees the request or we see the consumer.
+        if (mWaiters.get() > 0) {
+            mLock.lock();
+            try {
+                mNotEmpty.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+        Signal signal = mSignal;
+        if (signal != null) {
+            signal.signal();
+        }
+        return true;
+    }
+
+    /**
+     * Sets a signal to raise on every insert, for consumers waiting on several queues at once.
+     */
+    void setSignal(Signal signal) {
+        mSignal = signal;
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> poll() {
+        for (int i = mLevels.length - 1; i >= 0; i--) {
+            Request<?> request = mLevels[i].poll();
+            if (request != null) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        Request<?> request;
+        while ((request = poll()) == null) {
+            awaitRequest(-1);
+        }
+        return request;
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        Request<?> request;
+        while ((request = poll()) == null) {
+            if (nanos <= 0) {
+                return null;
+            }
+            awaitRequest(nanos);
+            nanos = deadline - System.nanoTime();
+        }
+        return request;
+    }
+
+    /**
+     * Parks the calling consumer until a request may be available, or for at most
+     * <code>nanos</code> if that is not negative.
+     */
+    private void awaitRequest(long nanos) throws InterruptedException {
+        mWaiters.incrementAndGet();
+        try {
+            mLock.lockInterruptibly();
+            try {
+                // Producers signal while holding the lock, so checking under it can't miss one.
+                while (isLevelsEmpty()) {
+                    if (nanos < 0) {
+                        mNotEmpty.await();
+                    } else if (nanos == 0) {
+                        return;
+                    } else {
+                        nanos = mNotEmpty.awaitNanos(nanos);
+                        if (nanos <= 0) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                mLock.unlock();
+            }
+        } finally {
+            mWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * The requests of one priority: a lock-free FIFO of requests inserted in sequence order,
+     * and the requests inserted out of it, ordered by sequence number.
+     */
+    private static class Level {
+        private static final Comparator<Request<?>> SEQUENCE_ORDER = new Comparator<Request<?>>() {
+            @Override
+            public int compare(Request<?> left, Request<?> right) {
+                int l = left.getSequence();
+                int r = right.getSequence();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        };
+
+        private final ConcurrentLinkedQueue<Request<?>> mFifo =
+                new ConcurrentLinkedQueue<Request<?>>();
+
+        /** Highest sequence number appended to the FIFO. */
+        private final AtomicInteger mMaxSequence = new AtomicInteger(Integer.MIN_VALUE);
+
+        /** Requests inserted behind a higher sequence number. Guarded by itself. */
+        private final PriorityQueue<Request<?>> mLate =
+                new PriorityQueue<Request<?>>(11, SEQUENCE_ORDER);
+
+        /** Size of mLate, read without its lock. */
+        private final AtomicInteger mLateCount = new AtomicInteger();
+
+        void offer(Request<?> request) {
+            if (request.hasSequence() && !advanceTo(request.getSequence())) {
+                synchronized (mLate) {
+                    mLate.offer(request);
+                    mLateCount.incrementAndGet();
+                }
+                return;
+            }
+            mFifo.offer(request);
+        }
+
+        /**
+         * Raises the highest sequence number to <code>sequence</code>, returning false if it
+         * was already as high.
+         */
+        private boolean advanceTo(int sequence) {
+            while (true) {
+                int max = mMaxSequence.get();
+                if (sequence <= max) {
+                    return false;
+                }
+                if (mMaxSequence.compareAndSet(max, sequence)) {
+                    return true;
+                }
+            }
+        }
+
+        Request<?> poll() {
+            if (mLateCount.get() == 0) {
+                return mFifo.poll();
+            }
+            synchronized (mLate) {
+                Request<?> late = mLate.peek();
+                if (late != null && isBefore(late, mFifo.peek())) {
+                    mLate.poll();
+                    mLateCount.decrementAndGet();
+                    return late;
+                }
+            }
+            return mFifo.poll();
+        }
+
+        Request<?> peek() {
+            if (mLateCount.get() == 0) {
+                return mFifo.peek();
+            }
+            synchronized (mLate) {
+                Request<?> late = mLate.peek();
+                Request<?> head = mFifo.peek();
+                return late != null && isBefore(late, head) ? late : head;
+            }
+        }
+
+        /**
+         * Returns true if <code>late</code> should be taken before the head of the FIFO.
+         */
+        private static boolean isBefore(Request<?> late, Request<?> head) {
+            return head == null || !head.hasSequence()
+                    || late.getSequence() < head.getSequence();
+        }
+
+        boolean remove(Object o) {
+            if (mFifo.remove(o)) {
+                return true;
+            }
+            if (mLateCount.get() == 0) {
+                return false;
+            }
+            synchronized (mLate) {
+                if (mLate.remove(o)) {
+                    mLateCount.decrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        boolean contains(Object o) {
+            if (mFifo.contains(o)) {
+                return true;
+            }
+            if (mLateCount.get() == 0) {
+                return false;
+            }
+            synchronized (mLate) {
+                return mLate.contains(o);
+            }
+        }
+
+        boolean isEmpty() {
+            return mLateCount.get() == 0 && mFifo.isEmpty();
+        }
+
+        int size() {
+            return mFifo.size() + mLateCount.get();
+        }
+
+        /**
+         * Returns a weakly consistent iterator over the FIFO, then over a copy of the requests
+         * inserted out of it.
+         */
+        Iterator<Request<?>> iterator() {
+            final Iterator<Request<?>> fifo = mFifo.iterator();
+            final Request<?>[] late;
+            if (mLateCount.get() == 0) {
+                late = new Request<?>[0];
+            } else {
+                synchronized (mLate) {
+                    late = mLate.toArray(new Request<?>[mLate.size()]);
+                }
+                Arrays.sort(late, SEQUENCE_ORDER);
+            }
+            return new Iterator<Request<?>>() {
+                private int mNextLate;
+                private boolean mInFifo = true;
+
+                @Override
+                public boolean hasNext() {
+                    return fifo.hasNext() || mNextLate < late.length;
+                }
+
+                @Override
+                public Request<?> next() {
+                    if (fifo.hasNext()) {
+                        mInFifo = true;
+                        return fifo.next();
+                    }
+                    if (mNextLate < late.length) {
+                        mInFifo = false;
+                        return late[mNextLate++];
+                    }
+                    throw new NoSuchElementException();
+                }
+
+                @Override
+                public void remove() {
+                    if (mInFifo) {
+                        fifo.remove();
+                    } else {
+                        synchronized (mLate) {
+                            if (mLate.remove(late[mNextLate - 1])) {
+                                mLateCount.decrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Lets consumers park until any of a group of queues has an insert. A consumer calls
+     * {@link #beginWait()}, polls its queues, and if they are all empty calls
+     * {@link #await(int)} with the generation it got, then {@link #endWait()}. Producers raise
+     * the signal only when a consumer is waiting, like the queue's own condition.
+     */
+    static class Signal {
+        private final AtomicInteger mWaiters = new AtomicInteger();
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mRaised = mLock.newCondition();
+        /** Incremented every time the signal is raised. Guarded by mLock for writes. */
+        private volatile int mGeneration;
+
+        /** Registers a waiter and returns the current generation. */
+        int beginWait() {
+            mWaiters.incrementAndGet();
+            return mGeneration;
+        }
+
+        /** Parks until the signal is raised after <code>generation</code> was read. */
+        void await(int generation) throws InterruptedException {
+            mLock.lockInterruptibly();
+            try {
+                while (mGeneration == generation) {
+                    mRaised.await();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        void endWait() {
+            mWaiters.decrementAndGet();
+        }
+
+        void signal() {
+            if (mWaiters.get() > 0) {
+                mLock.lock();
+                try {
+                    mGeneration++;
+                    mRaised.signalAll();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+    }
+
+    private boolean isLevelsEmpty() {
+        for (int i = mLevels.length - 1; i >= 0; i--) {
+            if (!mLevels[i].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Request<?> peek() {
+        for (int i = mLevels.length - 1; i >= 0; i--) {
+            Request<?> request = mLevels[i].peek();
+            if (request != null) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given request. Looks in every level, so this works even if the request's
+     * priority changed while it was queued.
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        for (int i = mLevels.length - 1; i >= 0; i--) {
+            if (mLevels[i].remove(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        for (int i = mLevels.length - 1; i >= 0; i--) {
+            if (mLevels[i].contains(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return isLevelsEmpty();
+    }
+
+    /**
+     * Returns the number of queued requests. This traverses every level, so it is not a
+     * constant-time operation and only an estimate while the queue is being modified.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < mLevels.length; i++) {
+            size += mLevels[i].size();
+        }
+        return size;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        Request<?> request;
+        while (n < maxElements && (request = poll()) != null) {
+            c.add(request);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the queued requests, from the highest
+     * priority to the lowest.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        return new Iterator<Request<?>>() {
+            private int mLevel = mLevels.length - 1;
+            private Iterator<Request<?>> mCurrent = mLevels[mLevel].iterator();
+            private Iterator<Request<?>> mLast;
+
+            @Override
+            public boolean hasNext() {
+                while (!mCurrent.hasNext()) {
+                    if (mLevel == 0) {
+                        return false;
+                    }
+                    mCurrent = mLevels[--mLevel].iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Request<?> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                mLast = mCurrent;
+                return mCurrent.next();
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                mLast.remove();
+                mLast = null;
+            }
+        };
+    }
+}
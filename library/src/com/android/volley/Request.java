@@ -26,6 +26,7 @@ import com.android.volley.VolleyLog.MarkerLog;
 import com.android.volley.error.AuthFailureError;
 import com.android.volley.error.TimeoutError;
 import com.android.volley.error.VolleyError;
+import com.android.volley.toolbox.ResponseBudget;
 import com.android.volley.toolbox.VolleyTickle;
 
 import java.io.UnsupportedEncodingException;
@@ -60,8 +61,67 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         int PATCH = 7;
     }
 
-    /** An event log tracing the lifetime of this request; for debugging. */
-    private final MarkerLog mEventLog = MarkerLog.ENABLED ? new MarkerLog() : null;
+    /**
+     * Codes of the events marked by Volley, see {@link #addMarker(int)}.
+     */
+    public interface Marker {
+        /** An event described by its detail string, see {@link #addMarker(String)}. */
+        int CUSTOM = 0;
+        int ADD_TO_QUEUE = 1;
+        int PRIORITY_CHANGED = 2;
+        int PRIORITY_INHERITED = 3;
+        int CACHE_QUEUE_TAKE = 4;
+        int CACHE_DISCARD_CANCELED = 5;
+        int CACHE_HANDOFF = 6;
+        int CACHE_MISS = 7;
+        int CACHE_HIT_EXPIRED = 8;
+        int CACHE_HIT = 9;
+        int CACHE_HIT_PARSED = 10;
+        int CACHE_HIT_REFRESH_NEEDED = 11;
+        int HANDOFF_RESPONSE = 12;
+        int NETWORK_QUEUE_TAKE = 13;
+        /** Detail: the name of the borrowing lane. */
+        int LANE_BORROWED = 14;
+        int NETWORK_DISCARD_CANCELLED = 15;
+        int NETWORK_HTTP_COMPLETE = 16;
+        int NOT_MODIFIED = 17;
+        int NETWORK_BODY_SPILLED = 18;
+        /** Detail: the kind of failure; number: the timeout of the failed attempt. */
+        int RETRY = 19;
+        /** Detail: the kind of failure; number: the timeout of the failed attempt. */
+        int TIMEOUT_GIVEUP = 20;
+        int NETWORK_PARSE_COMPLETE = 21;
+        int NETWORK_CACHE_WRITTEN = 22;
+        int LOCAL_QUEUE_TAKE = 23;
+        int LOCAL_DISCARD_CANCELLED = 24;
+        int LOCAL_PARSE_COMPLETE = 25;
+        int LOCAL_CACHE_WRITTEN = 26;
+        int READ_FULL_SIZE_IMAGE_FROM_FILE = 27;
+        /** Number: the sample size. */
+        int READ_FROM_FILE_SCALED = 28;
+        int SCALING_READ_FROM_FILE_BITMAP = 29;
+        int READ_FULL_SIZE_IMAGE_FROM_RESOURCE = 30;
+        /** Number: the sample size. */
+        int READ_FROM_RESOURCE_SCALED = 31;
+        int SCALING_READ_FROM_RESOURCE_BITMAP = 32;
+        int POST_RESPONSE = 33;
+        int POST_ERROR = 34;
+        int INTERMEDIATE_RESPONSE = 35;
+        int CANCELED_AT_DELIVERY = 36;
+        int DONE = 37;
+        int NETWORK_BODY_STREAMED = 38;
+        /** Detail: the content encoding; number: the number of bytes received. */
+        int NETWORK_BODY_DECODED = 39;
+    }
+
+    /** Handler of the main thread, where event logs are dumped. */
+    private static volatile Handler sMainHandler;
+
+    /**
+     * An event log tracing the lifetime of this request, for debugging and the
+     * {@link FlightRecorder}; null if neither is enabled.
+     */
+    private final MarkerLog mEventLog = MarkerLog.create();
 
     /** Request method of this request.  Currently supports GET, POST, PUT, DELETE, HEAD, OPTIONS,
      * TRACE, and PATCH. 
@@ -86,6 +146,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** Whether or not large response bodies may be written to a file instead of memory. */
+    private boolean mShouldSpillToDisk = false;
+
+    /** When this request last entered a dispatch queue, for {@link VolleyMetrics}. */
+    private volatile long mQueuedNanos;
+
+    /** The {@link VolleyMetrics} series this request records to, once resolved. */
+    private VolleyMetrics.Series mMetricsSeries;
+
     /** Whether or not this request has been canceled. */
     private boolean mCanceled = false;
 
@@ -105,6 +174,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Cache.Entry mCacheEntry = null;
 
+    /**
+     * An entry fetched for this request's cache key by a duplicate request, handed over by the
+     * {@link RequestQueue} so it need not be read back from the cache.
+     */
+    private Cache.Entry mHandoffEntry = null;
+
+    /** The parsed response for {@link #mHandoffEntry}, if one is available for reuse. */
+    private Response<?> mHandoffResponse = null;
+
+    /** Memory reserved for the response body read for this request, until it finishes. */
+    private volatile ResponseBudget.Reservation mResponseReservation = null;
+
     /** Extra parameters to be added to the request headers */
     private Map<String, String> mRequestHeaders = null;
 
@@ -117,6 +198,12 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /** An opaque token tagging this request; used for bulk cancellation. */
     private Object mTag;
+
+    /** Name of the {@link RequestQueue} lane this request is dispatched on, or null. */
+    private String mLane;
+
+    /** Codec the body is encoded with by the stack, or null to send it as is. */
+    private RequestBodyCodec mBodyCodec;
     
     /** {@link Priority} for this request     */
     private Priority mPriority;
@@ -195,6 +282,25 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mTag;
     }
 
+    /**
+     * Sets the lane this request is dispatched on. Requests whose lane was not added to the
+     * queue with {@link RequestQueue#addLane(String, int, boolean)} use the default dispatchers.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setLane(String lane) {
+        mLane = lane;
+        return this;
+    }
+
+    /**
+     * Returns the name of the lane this request is dispatched on, or null for the default one.
+     * @see Request#setLane(String)
+     */
+    public String getLane() {
+        return mLane;
+    }
+
     /**
      * @return this request's {@link com.android.volley.Response.ErrorListener}.
      */
@@ -236,49 +342,70 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Adds an event to this request's event log; for debugging.
+     * Adds an event to this request's event log. Prefer {@link #addMarker(int)}, which doesn't
+     * allocate.
      */
     public void addMarker(String tag) {
-    	try {
-            if (MarkerLog.ENABLED) {
-                mEventLog.add(tag, Thread.currentThread().getId());
-            }
-		} catch (Exception e) {
-		}
+        addMarker(Marker.CUSTOM, tag, 0);
+    }
+
+    /**
+     * Adds an event, one of the {@link Marker} codes, to this request's event log.
+     */
+    public void addMarker(int code) {
+        addMarker(code, null, 0);
+    }
+
+    /**
+     * Adds an event to this request's event log with a detail string and number, which are
+     * only formatted when the log is dumped. Pass constant strings to avoid allocating.
+     */
+    public void addMarker(int code, String detail, long arg) {
+        if (mEventLog != null) {
+            mEventLog.add(code, detail, arg);
+        }
     }
 
     /**
      * Notifies the request queue that this request has finished (successfully or with error).
      *
-     * <p>Also dumps all events from this request's event log; for debugging.</p>
+     * <p>Also records the event log to the {@link FlightRecorder} and, when debugging, dumps
+     * it.</p>
      */
-    void finish(final String tag) {
+    void finish(int code) {
         if (mRequestQueue != null) {
             mRequestQueue.finish(this);
         }
-        if (MarkerLog.ENABLED) {
-        	try {
-                final long threadId = Thread.currentThread().getId();
-                if (Looper.myLooper() != Looper.getMainLooper()) {
-                    // If we finish marking off of the main thread, we need to
-                    // actually do it on the main thread to ensure correct ordering.
-                    Handler mainThread = new Handler(Looper.getMainLooper());
-                    mainThread.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mEventLog.add(tag, threadId);
-                            mEventLog.finish(this.toString());
-                        }
-                    });
-                    return;
+        setResponseReservation(null);
+        if (mEventLog == null) {
+            return;
+        }
+        mEventLog.add(code, null, 0);
+        FlightRecorder recorder = FlightRecorder.getDefault();
+        if (recorder.isEnabled()) {
+            recorder.record(this, mEventLog);
+        }
+        if (!MarkerLog.ENABLED) {
+            mEventLog.close();
+        } else if (Looper.myLooper() != Looper.getMainLooper()) {
+            // If we finish marking off of the main thread, we need to
+            // actually do it on the main thread to ensure correct ordering.
+            getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    mEventLog.finish(Request.this.toString());
                 }
+            });
+        } else {
+            mEventLog.finish(this.toString());
+        }
+    }
 
-                mEventLog.add(tag, threadId);
-                mEventLog.finish(this.toString());
-			} catch (Exception e) {
-			}
-
+    private static Handler getMainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
         }
+        return sMainHandler;
     }
 
     /**
@@ -292,6 +419,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * Returns the request queue this request was added to, or null.
+     */
+    RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
+    /**
+     * Returns true if this request was added to a {@link RequestQueue}, which finishes it once
+     * its response has been delivered.
+     */
+    public boolean hasRequestQueue() {
+        return mRequestQueue != null;
+    }
+
     /**
      * Sets the sequence number of this request.  Used by {@link RequestQueue}.
      *
@@ -302,6 +444,13 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * Returns true if {@link #setSequence(int)} was called.
+     */
+    final boolean hasSequence() {
+        return mSequence != null;
+    }
+
     /**
      * Returns the sequence number of this request.
      */
@@ -359,6 +508,71 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCacheEntry;
     }
 
+    void setQueuedNanos(long queuedNanos) {
+        mQueuedNanos = queuedNanos;
+    }
+
+    long getQueuedNanos() {
+        return mQueuedNanos;
+    }
+
+    void setMetricsSeries(VolleyMetrics.Series series) {
+        mMetricsSeries = series;
+    }
+
+    VolleyMetrics.Series getMetricsSeries() {
+        return mMetricsSeries;
+    }
+
+    /**
+     * Remembers the entry (and optionally its parsed response) this request resolved to, so
+     * that duplicates staged behind it can be served from memory when it finishes.
+     */
+    void setHandoff(Cache.Entry entry, Response<?> response) {
+        mHandoffEntry = entry;
+        mHandoffResponse = response;
+    }
+
+    /**
+     * Holds memory reserved for the response body of this request until it finishes, releasing
+     * what was held for an earlier attempt. Used by
+     * {@link com.android.volley.toolbox.BasicNetwork}.
+     */
+    public void setResponseReservation(ResponseBudget.Reservation reservation) {
+        ResponseBudget.Reservation previous = mResponseReservation;
+        mResponseReservation = reservation;
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Returns and clears the entry set by {@link #setHandoff(Cache.Entry, Response)}.
+     */
+    Cache.Entry takeHandoffEntry() {
+        Cache.Entry entry = mHandoffEntry;
+        mHandoffEntry = null;
+        return entry;
+    }
+
+    /**
+     * Returns and clears the response set by {@link #setHandoff(Cache.Entry, Response)}.
+     */
+    Response<?> takeHandoffResponse() {
+        Response<?> response = mHandoffResponse;
+        mHandoffResponse = null;
+        return response;
+    }
+
+    /**
+     * Returns true if a response parsed by this request can be delivered unchanged to the
+     * given request with the same cache key, sparing it from parsing the data again. Only
+     * return true if the parsed result is immutable or safe to share between listeners.
+     */
+    protected boolean canShareResponseWith(Request<?> other) {
+        return false;
+    }
+
     /**
      * Mark this request as canceled.  No callback will be delivered.
      */
@@ -518,6 +732,38 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return null;
     }
 
+    /**
+     * Returns the body the stack writes to the connection, or null if there is none.
+     *
+     * <p>By default, this wraps {@link #getBody()} and {@link #getBodyContentType()}. Override
+     * it to stream large bodies, such as files, instead of building them in memory; the body
+     * is written once per attempt.</p>
+     *
+     * @throws AuthFailureError in the event of auth failure
+     */
+    public RequestBody getRequestBody() throws AuthFailureError {
+        byte[] body = getBody();
+        return body != null ? RequestBody.create(getBodyContentType(), body) : null;
+    }
+
+    /**
+     * Sets the codec the stack encodes the body with, such as {@link RequestBodyCodec#GZIP}.
+     * The server must accept the encoding.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setBodyCodec(RequestBodyCodec codec) {
+        mBodyCodec = codec;
+        return this;
+    }
+
+    /**
+     * Returns the codec the body is encoded with, or null if it is sent as is.
+     */
+    public RequestBodyCodec getBodyCodec() {
+        return mBodyCodec;
+    }
+
     /**
      * Converts <code>params</code> into an application/x-www-form-urlencoded encoded string.
      */
@@ -570,6 +816,26 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * Set whether or not large or unknown-length response bodies may be written to a temporary
+     * file instead of memory. Requests that enable this must read the body through
+     * {@link NetworkResponse#openBody()} or {@link NetworkResponse#bodyFile}; spilled responses
+     * are not written to the cache.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setShouldSpillToDisk(boolean shouldSpillToDisk) {
+        mShouldSpillToDisk = shouldSpillToDisk;
+        return this;
+    }
+
+    /**
+     * Returns true if response bodies may be written to a temporary file.
+     */
+    public final boolean shouldSpillToDisk() {
+        return mShouldSpillToDisk;
+    }
+
     /**
      * Returns true if responses to this request should be cached.
      */
@@ -611,15 +877,23 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
     
     /**
-     * Sets the priority for this request
-     * 
-     * @throws IllegalStateException If priority is changed after adding to request queue
+     * Sets the priority for this request. If the request has already been added to a
+     * {@link RequestQueue} and is still waiting to be dispatched, it is moved to its new
+     * position in the queue immediately.
      */
-    public void setPriority(Priority priority) throws IllegalStateException {
-        
-        if(mRequestQueue != null) {
-            throw new IllegalStateException("Cannot change priority after adding to request queue");
+    public void setPriority(Priority priority) {
+        if (mRequestQueue != null) {
+            mRequestQueue.setPriority(this, priority);
+        } else {
+            mPriority = priority;
         }
+    }
+
+    /**
+     * Updates the priority field only. Used by {@link RequestQueue} once the request
+     * is out of any priority-ordered queue.
+     */
+    void updatePriority(Priority priority) {
         mPriority = priority;
     }
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a request, written by the stack straight to the connection.
+ *
+ * <p>A body is written once per attempt, so {@link #writeTo(OutputStream)} must write the same
+ * bytes every time it is called. If {@link #contentLength()} is known, the stacks send the body
+ * with fixed-length streaming; it must then be exact. {@link com.android.volley.toolbox.HurlStack} buffers small
+ * {@linkplain #isInMemory() in-memory} bodies instead.</p>
+ */
+public abstract class RequestBody {
+
+    /**
+     * Returns the value of the Content-Type header.
+     */
+    public abstract String contentType();
+
+    /**
+     * Returns the value of the Content-Encoding header, or null if the body isn't encoded.
+     */
+    public String contentEncoding() {
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo(OutputStream)} writes, or -1 if unknown, in
+     * which case the body is sent chunked.
+     */
+    public long contentLength() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Writes the body. The stream is closed by the caller.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Returns true if the body is already held in memory, so buffering it costs no extra copy
+     * worth avoiding. False by default; true for bodies from {@link #create(String, byte[])}.
+     */
+    public boolean isInMemory() {
+        return false;
+    }
+
+    /**
+     * Returns a body holding the given bytes.
+     */
+    public static RequestBody create(final String contentType, final byte[] content) {
+        return new RequestBody() {
+            @Override
+            public String contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+            }
+
+            @Override
+            public boolean isInMemory() {
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Response.ProgressListener;
+import com.android.volley.misc.CountingOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses request bodies on their way to the connection. Set one on a request with
+ * {@link Request#setBodyCodec(RequestBodyCodec)}; the server must accept the encoding.
+ *
+ * <p>The body is encoded while it is written, so no compressed copy of it is built. As its
+ * encoded length isn't known up front, it is sent chunked. Bodies shorter than the codec's
+ * minimum size are sent as they are, as are bodies of unknown length. Stacks write bodies with
+ * {@link #write(RequestBody, OutputStream, ProgressListener)}, so that progress is reported in
+ * bytes of the body as the request built it.</p>
+ */
+public abstract class RequestBodyCodec {
+
+    /** Bodies shorter than this rarely shrink by more than the cost of compressing them. */
+    public static final long DEFAULT_MIN_SIZE = 1024;
+
+    /** Gzip with the default minimum size. */
+    public static final RequestBodyCodec GZIP = new GzipCodec(DEFAULT_MIN_SIZE);
+
+    private final long mMinSize;
+
+    /**
+     * @param minSize Length below which bodies aren't encoded
+     */
+    protected RequestBodyCodec(long minSize) {
+        mMinSize = minSize;
+    }
+
+    public long getMinSize() {
+        return mMinSize;
+    }
+
+    /**
+     * Returns the value of the Content-Encoding header, such as <code>gzip</code>.
+     */
+    public abstract String getEncoding();
+
+    /**
+     * Returns a stream encoding what is written to it into <code>out</code>. Closing it must
+     * finish the encoding; <code>out</code> itself is not closed by it.
+     */
+    public abstract OutputStream encode(OutputStream out) throws IOException;
+
+    /**
+     * Returns the body to send: <code>body</code> encoded with <code>codec</code>, or
+     * <code>body</code> itself if there is no codec or the body is too short.
+     */
+    public static RequestBody apply(RequestBody body, RequestBodyCodec codec) throws IOException {
+        if (body == null || codec == null) {
+            return body;
+        }
+        long length = body.contentLength();
+        if (length < codec.getMinSize()) {
+            return body;
+        }
+        return new EncodedBody(body, codec);
+    }
+
+    /**
+     * Writes a body returned by {@link #apply(RequestBody, RequestBodyCodec)} to
+     * <code>out</code>. Progress is reported to <code>listener</code>, if any, as the body is
+     * written before encoding, against its length before encoding.
+     *
+     * @return the number of bytes written to <code>out</code>, encoded if the body is
+     */
+    public static long write(RequestBody body, OutputStream out, ProgressListener listener)
+            throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out, -1, null);
+        if (body instanceof EncodedBody) {
+            ((EncodedBody) body).writeTo(counter, listener);
+        } else if (listener != null) {
+            body.writeTo(new CountingOutputStream(counter, body.contentLength(), listener));
+        } else {
+            body.writeTo(counter);
+        }
+        counter.flush();
+        return counter.getTransferred();
+    }
+
+    /** Compresses with gzip. */
+    public static class GzipCodec extends RequestBodyCodec {
+        private static final int BUFFER_SIZE = 8192;
+
+        public GzipCodec(long minSize) {
+            super(minSize);
+        }
+
+        @Override
+        public String getEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+    }
+
+    private static class EncodedBody extends RequestBody {
+        private final RequestBody mBody;
+        private final RequestBodyCodec mCodec;
+
+        EncodedBody(RequestBody body, RequestBodyCodec codec) {
+            mBody = body;
+            mCodec = codec;
+        }
+
+        @Override
+        public String contentType() {
+            return mBody.contentType();
+        }
+
+        @Override
+        public String contentEncoding() {
+            return mCodec.getEncoding();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            writeTo(out, null);
+        }
+
+        void writeTo(final OutputStream out, ProgressListener listener) throws IOException {
+            // The caller closes the connection's stream.
+            OutputStream encoder = mCodec.encode(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    out.write(buffer, offset, count);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            if (listener != null) {
+                mBody.writeTo(new CountingOutputStream(encoder, mBody.contentLength(), listener));
+            } else {
+                mBody.writeTo(encoder);
+            }
+            encoder.close();
+        }
+    }
+}
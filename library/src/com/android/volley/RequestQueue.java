@@ -19,15 +19,20 @@ package com.android.volley;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.android.volley.Request.Marker;
+import com.android.volley.misc.Utils;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -46,6 +51,12 @@ public class RequestQueue {
         public void onRequestFinished(Request<T> request);
     }
 
+    /** Lane name used by default for image requests. */
+    public static final String LANE_IMAGES = "images";
+
+    /** Lane name used by default for downloads and multipart uploads. */
+    public static final String LANE_BULK = "bulk";
+
     /** Used for generating monotonically-increasing sequence numbers for requests. */
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
@@ -62,6 +73,12 @@ public class RequestQueue {
     private final Map<String, Queue<Request<?>>> mWaitingRequests =
             new HashMap<String, Queue<Request<?>>>();
 
+    /**
+     * The request in flight for each cache key in {@link #mWaitingRequests}, so that staged
+     * duplicates can pass their priority on to it. Guarded by <code>mWaitingRequests</code>.
+     */
+    private final Map<String, Request<?>> mInFlightRequests = new HashMap<String, Request<?>>();
+
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
@@ -70,16 +87,20 @@ public class RequestQueue {
     private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
 
     /** The cache triage queue. */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final BlockingQueue<Request<?>> mCacheQueue;
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final BlockingQueue<Request<?>> mNetworkQueue;
+
+    /** The queue of requests for local content, see {@link LocalDispatcher}. */
+    private final BlockingQueue<Request<?>> mLocalQueue;
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /** Number of local content dispatcher threads to start. */
+    static final int DEFAULT_LOCAL_THREAD_POOL_SIZE = 2;
+
     /** Cache interface for retrieving and storing responses. */
     private final Cache mCache;
 
@@ -92,12 +113,36 @@ public class RequestQueue {
     /** The network dispatchers. */
     private NetworkDispatcher[] mDispatchers;
 
+    /** The local content dispatchers. */
+    private final LocalDispatcher[] mLocalDispatchers;
+
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
 
+    /** The shared dispatchers this queue runs on, or null if it has its own. */
+    private final DispatcherPool mPool;
+
+    /** Lanes with dedicated dispatchers, by name. */
+    private final Map<String, NetworkLane> mLanes = new ConcurrentHashMap<String, NetworkLane>();
+
+    /** Raised on inserts into the queues idle lending lanes take from. */
+    private final PriorityLevelQueue.Signal mLaneSignal = new PriorityLevelQueue.Signal();
+
+    /** State of the channels used with {@link #addLatest(Request, Object, long)}. */
+    private final Map<Object, LatestChannel> mLatestChannels = new HashMap<Object, LatestChannel>();
+
+    /** Posts the end of quiet periods; created on first use. */
+    private Handler mMainHandler;
+
+    /** Whether {@link #start()} was called without a matching {@link #stop()}. */
+    private volatile boolean mStarted;
+
     private List<RequestFinishedListener> mFinishedListeners =
             new ArrayList<RequestFinishedListener>();
 
+    /** Serializes priority changes so a request is never re-inserted twice. */
+    private final Object mPriorityLock = new Object();
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -108,10 +153,65 @@ public class RequestQueue {
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
             ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, DEFAULT_LOCAL_THREAD_POOL_SIZE, delivery);
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param localThreadPoolSize Number of dispatcher threads to create for local content
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int threadPoolSize,
+            int localThreadPoolSize, ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
         mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mLocalDispatchers = new LocalDispatcher[localThreadPoolSize];
         mDelivery = delivery;
+        mPool = null;
+        mCacheQueue = new PriorityLevelQueue();
+        PriorityLevelQueue networkQueue = new PriorityLevelQueue();
+        networkQueue.setSignal(mLaneSignal);
+        mNetworkQueue = networkQueue;
+        mLocalQueue = new PriorityLevelQueue();
+    }
+
+    /**
+     * Creates a queue that runs on the dispatchers of the given pool instead of starting its
+     * own. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param pool The dispatchers to share with other queues
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, DispatcherPool pool,
+            ResponseDelivery delivery) {
+        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new NetworkDispatcher[0];
+        mLocalDispatchers = new LocalDispatcher[0];
+        mDelivery = delivery;
+        mPool = pool;
+        mCacheQueue = pool.getCacheQueue();
+        mNetworkQueue = pool.getNetworkQueue();
+        mLocalQueue = pool.getLocalQueue();
+    }
+
+    /**
+     * Creates a queue that runs on the dispatchers of the given pool instead of starting its
+     * own. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param pool The dispatchers to share with other queues
+     */
+    public RequestQueue(Cache cache, Network network, DispatcherPool pool) {
+        this(cache, network, pool, new ExecutorDelivery(new Handler(Looper.getMainLooper())));
     }
 
     /**
@@ -137,10 +237,18 @@ public class RequestQueue {
     }
 
     /**
-     * Starts the dispatchers in this queue.
+     * Starts the dispatchers in this queue, or attaches it to its {@link DispatcherPool}.
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
+        mStarted = true;
+        for (NetworkLane lane : mLanes.values()) {
+            lane.start();
+        }
+        if (mPool != null) {
+            mPool.attach(this);
+            return;
+        }
         // Create the cache dispatcher and start it.
         mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
         mCacheDispatcher.start();
@@ -152,12 +260,26 @@ public class RequestQueue {
             mDispatchers[i] = networkDispatcher;
             networkDispatcher.start();
         }
+
+        for (int i = 0; i < mLocalDispatchers.length; i++) {
+            mLocalDispatchers[i] = new LocalDispatcher(mLocalQueue);
+            mLocalDispatchers[i].start();
+        }
     }
 
     /**
-     * Stops the cache and network dispatchers.
+     * Stops the cache and network dispatchers, or detaches this queue from its
+     * {@link DispatcherPool}.
      */
     public void stop() {
+        mStarted = false;
+        for (NetworkLane lane : mLanes.values()) {
+            lane.stop();
+        }
+        if (mPool != null) {
+            mPool.detach(this);
+            return;
+        }
         if (mCacheDispatcher != null) {
             mCacheDispatcher.quit();
         }
@@ -166,13 +288,101 @@ public class RequestQueue {
                 mDispatchers[i].quit();
             }
         }
+        for (int i = 0; i < mLocalDispatchers.length; i++) {
+            if (mLocalDispatchers[i] != null) {
+                mLocalDispatchers[i].quit();
+            }
+        }
+    }
+
+    /**
+     * Adds a named lane with dispatcher threads of its own. Requests whose
+     * {@link Request#getLane()} matches the name go to the network through this lane only, so
+     * they never hold up requests of other lanes or of the default dispatchers. If the queue is
+     * already running the lane starts right away.
+     *
+     * @param name The lane name, e.g. {@link #LANE_BULK}
+     * @param threadPoolSize Number of network dispatcher threads reserved for the lane
+     * @param lendIdleThreads Whether idle threads of this lane may take requests waiting in
+     *                        other lanes of this queue or, unless it runs on a
+     *                        {@link DispatcherPool}, in its default network queue
+     */
+    public synchronized void addLane(String name, int threadPoolSize, boolean lendIdleThreads) {
+        if (name == null) {
+            throw new IllegalArgumentException("Lane name must not be null");
+        }
+        if (mLanes.containsKey(name)) {
+            throw new IllegalStateException("Lane " + name + " already exists");
+        }
+        NetworkLane lane = new NetworkLane(name, this, threadPoolSize, lendIdleThreads);
+        mLanes.put(name, lane);
+        if (mStarted) {
+            lane.start();
+        }
+    }
+
+    /**
+     * Gets the number of dispatcher threads of the given lane, or 0 if there is no such lane.
+     */
+    public int getLaneThreadPoolSize(String name) {
+        NetworkLane lane = name == null ? null : mLanes.get(name);
+        return lane == null ? 0 : lane.getThreadPoolSize();
+    }
+
+    /**
+     * Returns the queue the given request is dispatched from once it needs more than the cache:
+     * the local queue for local content, otherwise the queue of its lane or the default network
+     * queue if it has none.
+     */
+    BlockingQueue<Request<?>> getNetworkQueue(Request<?> request) {
+        String url = request.getUrl();
+        if (url != null && Utils.isSpecialType(url)) {
+            return mLocalQueue;
+        }
+        String name = request.getLane();
+        NetworkLane lane = name == null ? null : mLanes.get(name);
+        return lane != null ? lane.getQueue() : mNetworkQueue;
+    }
+
+    /**
+     * Returns the signal raised when a request is put in a queue lending lanes take from.
+     */
+    PriorityLevelQueue.Signal getLaneSignal() {
+        return mLaneSignal;
+    }
+
+    /**
+     * Called by an idle dispatcher of a lending lane; returns a request waiting in the default
+     * network queue or any other lane, or null if there is none. The default network queue of
+     * a pool is shared with other queues, so lanes only borrow from it for queues with
+     * dispatchers of their own.
+     */
+    Request<?> pollForLane(NetworkLane borrower) {
+        Request<?> request;
+        if (mPool == null) {
+            request = mNetworkQueue.poll();
+            if (request != null) {
+                return request;
+            }
+        }
+        for (NetworkLane lane : mLanes.values()) {
+            if (lane != borrower) {
+                request = lane.getQueue().poll();
+                if (request != null) {
+                    request.addMarker(Marker.LANE_BORROWED, borrower.getName(), 0);
+                    return request;
+                }
+            }
+        }
+        return null;
     }
 
     /**
      * Gets a sequence number.
      */
     public int getSequenceNumber() {
-        return mSequenceGenerator.incrementAndGet();
+        // Shared queues are ordered together, so they must share a sequence too.
+        return mPool != null ? mPool.getSequenceNumber() : mSequenceGenerator.incrementAndGet();
     }
 
     /**
@@ -182,11 +392,32 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * Gets the {@link Network} instance being used.
+     */
+    Network getNetwork() {
+        return mNetwork;
+    }
+
+    /**
+     * Gets the {@link ResponseDelivery} instance being used.
+     */
+    ResponseDelivery getDelivery() {
+        return mDelivery;
+    }
+
+    /**
+     * Gets the {@link DispatcherPool} this queue runs on, or null if it has its own dispatchers.
+     */
+    public DispatcherPool getDispatcherPool() {
+        return mPool;
+    }
+
     /**
      * Gets the thread pool size.
      */
     public int getThreadPoolSize() {
-        return mDispatchers.length;
+        return mPool != null ? mPool.getThreadPoolSize() : mDispatchers.length;
     }
 
     /**
@@ -209,6 +440,13 @@ public class RequestQueue {
                 }
             }
         }
+        synchronized (mLatestChannels) {
+            for (LatestChannel channel : mLatestChannels.values()) {
+                if (channel.pending != null && filter.apply(channel.pending)) {
+                    channel.pending.cancel();
+                }
+            }
+        }
     }
 
     /**
@@ -227,6 +465,94 @@ public class RequestQueue {
         });
     }
 
+    /**
+     * Changes the priority of all requests in this queue for which the given filter applies.
+     * Requests still waiting to be dispatched are reordered immediately.
+     * @param filter The filtering function to use
+     * @param priority The new priority
+     */
+    public void setPriority(RequestFilter filter, Request.Priority priority) {
+        List<Request<?>> matches = new ArrayList<Request<?>>();
+        synchronized (mCurrentRequests) {
+            for (Request<?> request : mCurrentRequests) {
+                if (filter.apply(request)) {
+                    matches.add(request);
+                }
+            }
+        }
+        for (Request<?> request : matches) {
+            setPriority(request, priority);
+        }
+    }
+
+    /**
+     * Changes the priority of all requests in this queue with the given tag. Tag must be
+     * non-null and equality is by identity.
+     */
+    public void setPriority(final Object tag, Request.Priority priority) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot setPriority with a null tag");
+        }
+        setPriority(new RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return request.getTag() == tag;
+            }
+        }, priority);
+    }
+
+    /**
+     * Called from {@link Request#setPriority(Request.Priority)}. A request waiting in the cache
+     * or network queue is taken out, updated and put back so it is ordered by its new priority;
+     * its sequence number is kept so FIFO order among equal priorities is preserved. Requests
+     * that are staged behind a duplicate or already being processed are simply updated.
+     */
+    void setPriority(Request<?> request, Request.Priority priority) {
+        synchronized (mPriorityLock) {
+            if (request.getPriority() == priority) {
+                return;
+            }
+            // The queues keep a level per priority, so the request must be removed from the
+            // one of its old priority before it changes.
+            BlockingQueue<Request<?>> networkQueue = getNetworkQueue(request);
+            if (mCacheQueue.remove(request)) {
+                request.updatePriority(priority);
+                mCacheQueue.add(request);
+            } else if (networkQueue.remove(request)) {
+                request.updatePriority(priority);
+                networkQueue.add(request);
+            } else {
+                request.updatePriority(priority);
+            }
+        }
+        request.addMarker(Marker.PRIORITY_CHANGED);
+        inheritPriority(request);
+    }
+
+    /**
+     * If the given request is staged behind a duplicate in flight with a lower priority,
+     * raises the priority of the duplicate so the staged request isn't held up by it.
+     */
+    private void inheritPriority(Request<?> staged) {
+        if (!staged.shouldCache()) {
+            return;
+        }
+        Request<?> inFlight;
+        synchronized (mWaitingRequests) {
+            String cacheKey = staged.getCacheKey();
+            Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
+            if (stagedRequests == null || !stagedRequests.contains(staged)) {
+                return;
+            }
+            inFlight = mInFlightRequests.get(cacheKey);
+        }
+        if (inFlight != null
+                && inFlight.getPriority().compareTo(staged.getPriority()) < 0) {
+            inFlight.addMarker(Marker.PRIORITY_INHERITED);
+            setPriority(inFlight, staged.getPriority());
+        }
+    }
+
     /**
      * Adds a Request to the dispatch queue.
      * @param request The request to service
@@ -241,11 +567,12 @@ public class RequestQueue {
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
-        request.addMarker("add-to-queue");
+        request.addMarker(Marker.ADD_TO_QUEUE);
+        VolleyMetrics.getDefault().markQueued(request);
 
         // If the request is uncacheable, skip the cache queue and go straight to the network.
         if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
+            getNetworkQueue(request).add(request);
             return request;
         }
 
@@ -267,10 +594,87 @@ public class RequestQueue {
                 // Insert 'null' queue for this cacheKey, indicating there is now a request in
                 // flight.
                 mWaitingRequests.put(cacheKey, null);
+                mInFlightRequests.put(cacheKey, request);
                 mCacheQueue.add(request);
+                return request;
             }
-            return request;
         }
+        // Don't let the urgent request wait on a less urgent one.
+        inheritPriority(request);
+        return request;
+    }
+
+    /**
+     * Adds a request in latest-wins mode: the request is only dispatched once no newer request
+     * has been added to the same channel for <code>quietPeriodMs</code>. A request superseded
+     * during its quiet period is canceled without touching the network, and dispatching a
+     * request cancels the previously dispatched one of the channel if it hasn't finished yet.
+     * Typical use is search-as-you-type, with one channel per search field.
+     *
+     * @param request The request to service
+     * @param channel Key of the channel; equality is by {@link Object#equals(Object)}
+     * @param quietPeriodMs How long to wait for a newer request before dispatching, or 0 to
+     *                      dispatch right away
+     * @return The passed-in request
+     */
+    public <T> Request<T> addLatest(final Request<T> request, final Object channel,
+            long quietPeriodMs) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Cannot addLatest with a null channel");
+        }
+        Request<?> superseded;
+        synchronized (mLatestChannels) {
+            LatestChannel state = mLatestChannels.get(channel);
+            if (state == null) {
+                state = new LatestChannel();
+                mLatestChannels.put(channel, state);
+            }
+            superseded = state.pending;
+            state.pending = request;
+        }
+        if (superseded != null) {
+            superseded.cancel();
+        }
+        if (quietPeriodMs <= 0) {
+            dispatchLatest(channel, request);
+        } else {
+            getMainHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchLatest(channel, request);
+                }
+            }, quietPeriodMs);
+        }
+        return request;
+    }
+
+    /**
+     * Ends the quiet period of the given request; does nothing if it was superseded meanwhile.
+     */
+    private void dispatchLatest(Object channel, Request<?> request) {
+        Request<?> previous;
+        synchronized (mLatestChannels) {
+            LatestChannel state = mLatestChannels.get(channel);
+            if (state == null || state.pending != request) {
+                return;
+            }
+            state.pending = null;
+            previous = state.dispatched;
+            state.dispatched = request;
+        }
+        if (previous != null) {
+            previous.cancel();
+        }
+        if (!request.isCanceled()) {
+            add(request);
+        }
+    }
+
+    private synchronized Handler getMainHandler() {
+        if (mMainHandler == null) {
+            mMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mMainHandler;
     }
 
     /**
@@ -290,18 +694,45 @@ public class RequestQueue {
                 listener.onRequestFinished(request);
             }
         }
+        synchronized (mLatestChannels) {
+            if (!mLatestChannels.isEmpty()) {
+                // Forget channels once their last request is done.
+                Iterator<LatestChannel> it = mLatestChannels.values().iterator();
+                while (it.hasNext()) {
+                    LatestChannel channel = it.next();
+                    if (channel.dispatched == request && channel.pending == null) {
+                        it.remove();
+                    }
+                }
+            }
+        }
         if (request.shouldCache()) {
+            Cache.Entry entry = request.takeHandoffEntry();
+            Response<?> response = request.takeHandoffResponse();
             synchronized (mWaitingRequests) {
                 String cacheKey = request.getCacheKey();
                 Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
+                mInFlightRequests.remove(cacheKey);
                 if (waitingRequests != null) {
                     if (VolleyLog.DEBUG) {
                         VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
                                 waitingRequests.size(), cacheKey);
                     }
                     // Process all queued up requests. They won't be considered as in flight, but
-                    // that's not a problem as the cache has been primed by 'request'.
-                    mCacheQueue.addAll(waitingRequests);
+                    // that's not a problem as the cache has been primed by 'request'. Hand them
+                    // what 'request' resolved to so they skip reading it back from the cache.
+                    for (Request<?> waiting : waitingRequests) {
+                        if (response != null && !entry.refreshNeeded()
+                                && request.canShareResponseWith(waiting)) {
+                            waiting.addMarker(Marker.HANDOFF_RESPONSE);
+                            waiting.markDelivered();
+                            mDelivery.postResponse(waiting, response);
+                        } else {
+                            waiting.setHandoff(entry, null);
+                            VolleyMetrics.getDefault().markQueued(waiting);
+                            mCacheQueue.add(waiting);
+                        }
+                    }
                 }
             }
         }
@@ -320,4 +751,12 @@ public class RequestQueue {
             mFinishedListeners.remove(listener);
         }
     }
+
+    /** Requests of one {@link #addLatest(Request, Object, long)} channel. */
+    private static class LatestChannel {
+        /** The request waiting out its quiet period, if any. */
+        Request<?> pending;
+        /** The request most recently handed to {@link #add(Request)}. */
+        Request<?> dispatched;
+    }
 }
@@ -23,6 +23,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
 
+import com.android.volley.Request.Marker;
 import com.android.volley.error.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 
@@ -115,12 +116,12 @@ public class RequestTickle {
         NetworkResponse networkResponse = null;
         long startTimeMs = SystemClock.elapsedRealtime();
         try {
-            mRequest.addMarker("network-queue-take");
+            mRequest.addMarker(Marker.NETWORK_QUEUE_TAKE);
 
             // If the request was cancelled already, do not perform the
             // network request.
             if (mRequest.isCanceled()) {
-                mRequest.finish("network-discard-cancelled");
+                mRequest.finish(Marker.NETWORK_DISCARD_CANCELLED);
                 return null;
             }
 
@@ -129,18 +130,18 @@ public class RequestTickle {
             if (entry != null) {
                 // If it is completely expired, just send it to the network.
                 if (entry.isExpired()) {
-                    mRequest.addMarker("cache-hit-expired");
+                    mRequest.addMarker(Marker.CACHE_HIT_EXPIRED);
                     mRequest.setCacheEntry(entry);
                 }
 
                 // We have a cache hit; parse its data for delivery back to the request.
-                mRequest.addMarker("cache-hit");
+                mRequest.addMarker(Marker.CACHE_HIT);
                 response = mRequest.parseNetworkResponse(
                         new NetworkResponse(entry.data, entry.responseHeaders));
                 networkResponse = new NetworkResponse(entry.data, entry.responseHeaders);
-                mRequest.addMarker("cache-hit-parsed");
+                mRequest.addMarker(Marker.CACHE_HIT_PARSED);
             } else {
-                mRequest.addMarker("cache-miss");
+                mRequest.addMarker(Marker.CACHE_MISS);
                 // Cache miss; continue.
             }
 
@@ -154,30 +155,37 @@ public class RequestTickle {
 
                 // Perform the network request.
                 networkResponse = mNetwork.performRequest(mRequest);
-                //mRequest.addMarker("network-http-complete");
+                //mRequest.addMarker(Marker.NETWORK_HTTP_COMPLETE);
 
                 // If the server returned 304 AND we delivered a response already,
                 // we're done -- don't deliver a second identical response.
                 if (networkResponse.notModified && mRequest.hasHadResponseDelivered()) {
-                    mRequest.finish("not-modified");
+                    mRequest.finish(Marker.NOT_MODIFIED);
                     return networkResponse;
                 }
 
                 // Parse the response here on the worker thread.
-                response = mRequest.parseNetworkResponse(networkResponse);
-                mRequest.addMarker("network-parse-complete");
+                try {
+                    response = mRequest.parseNetworkResponse(networkResponse);
+                } finally {
+                    // A spilled body is only valid while the request parses it.
+                    NetworkDispatcher.deleteBodyFile(networkResponse);
+                }
+                mRequest.addMarker(Marker.NETWORK_PARSE_COMPLETE);
 
                 if(mRequest.shouldCache()){
-                    // Write to cache if applicable.
+                    // Write to cache if applicable. Spilled bodies are never cached, as the
+                    // entry would hold the empty in-memory body.
                     // TODO: Only update cache metadata instead of entire record for 304s.
-                    if (mCache != null && response.cacheEntry != null) {
+                    if (mCache != null && response.cacheEntry != null
+                            && networkResponse.bodyFile == null) {
                         entry = HttpHeaderParser.parseIgnoreCacheHeaders(networkResponse,
                                 mRequest.getSoftExpire(),
                                 mRequest.getExpire());
                         mCache.put(mRequest.getCacheKey(), entry);
                     }
                 }
-                mRequest.addMarker("network-cache-written");
+                mRequest.addMarker(Marker.NETWORK_CACHE_WRITTEN);
             }
             // Post the response back.
             mRequest.markDelivered();
@@ -130,6 +130,7 @@ public class Volley {
     }
     /**
      * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
+     * All queues created here run on the dispatchers of {@link DispatcherPool#getDefault()}.
      *
      * @param context A {@link Context} to use for creating the cache dir.
      * @param stack An {@link HttpStack} to use for the network, or null for default.
@@ -146,7 +147,8 @@ public class Volley {
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network,
+                DispatcherPool.getDefault());
         queue.start();
 
         return queue;
@@ -163,7 +165,8 @@ public class Volley {
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network,
+                DispatcherPool.getDefault());
         queue.start();
 
         return queue;
@@ -205,7 +208,7 @@ public class Volley {
         // set the default tag if tag is empty
         req.setTag(TextUtils.isEmpty(tag) ? TAG : tag);
         if(BuildConfigs.DEBUG) {
-            VolleyLog.d("Adding request to queue: %s", req.getUrl());
+            VolleyLog.v("Adding request to queue: %s", req.getUrl());
         }
         getRequestQueue().add(req);
     }
@@ -214,12 +217,22 @@ public class Volley {
         // set the default tag if tag is empty
         req.setTag(TextUtils.isEmpty(tag) ? TAG : tag);
         if(BuildConfigs.DEBUG) {
-            VolleyLog.d("Adding request to queue: %s", req.getUrl());
+            VolleyLog.v("Adding request to queue: %s", req.getUrl());
         }
         getRequestQueue().cancelAll(tag);
         getRequestQueue().add(req);
     }
 
+    /**
+     * Adds the request in latest-wins mode, see
+     * {@link RequestQueue#addLatest(Request, Object, long)}. Unlike
+     * {@link #updateToRequestQueue(Request, String)}, superseded requests never reach the
+     * network if they are replaced within the quiet period.
+     */
+    public <T> void addLatestToRequestQueue(Request<T> req, Object channel, long quietPeriodMs) {
+        getRequestQueue().addLatest(req, channel, quietPeriodMs);
+    }
+
     public <T> void addToRequestQueue(Request<T> req) {
         // set the default tag if tag is empty
         req.setTag(TAG);
@@ -16,11 +16,11 @@
 
 package com.android.volley;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 /** Logging helper class. */
@@ -32,6 +32,24 @@ public class VolleyLog {
 
     public static boolean DEBUG = BuildConfigs.DEBUG;//Log.isLoggable(TAG, Log.VERBOSE);
 
+    /** Messages below this priority are dropped before being formatted. */
+    private static volatile int sLevel = DEBUG ? Log.VERBOSE : Log.DEBUG;
+
+    /** Whether messages name the calling method, which costs a stack walk per message. */
+    private static volatile boolean sCallerInfo = DEBUG;
+
+    private static volatile LogSink sSink;
+
+    /** Writes messages in the background, or null to write them on the calling thread. */
+    private static AsyncWriter sAsyncWriter;
+
+    /**
+     * Receives formatted messages; the default writes them to logcat.
+     */
+    public interface LogSink {
+        void println(int priority, String tag, String message, Throwable tr);
+    }
+
     /**
      * Customize the log tag for your application, so that other apps
      * using Volley don't mix their logs with yours.
@@ -46,62 +64,258 @@ public class VolleyLog {
 
         // Reinitialize the DEBUG "constant"
         DEBUG = Log.isLoggable(TAG, Log.VERBOSE);
+        sLevel = DEBUG ? Log.VERBOSE : Log.DEBUG;
+    }
+
+    /**
+     * Sets the lowest priority logged, one of the {@link Log} priorities. Defaults to
+     * {@link Log#VERBOSE} when {@link #DEBUG} and {@link Log#DEBUG} otherwise.
+     */
+    public static void setLevel(int priority) {
+        sLevel = priority;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Returns true if messages of the given priority are logged. Check it before computing
+     * expensive arguments.
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= sLevel;
+    }
+
+    /**
+     * Sets whether messages name the calling class and method. Defaults to {@link #DEBUG}.
+     */
+    public static void setCallerInfoEnabled(boolean enabled) {
+        sCallerInfo = enabled;
+    }
+
+    /**
+     * Sets where messages are written, or null for logcat.
+     */
+    public static void setSink(LogSink sink) {
+        sSink = sink;
+    }
+
+    /**
+     * Sets whether messages are formatted and written on a background thread, keeping both
+     * off the calling thread. Arguments are formatted after the call returns, so they must not
+     * be mutated afterwards. Messages are dropped while the backlog is full.
+     */
+    public static synchronized void setAsync(boolean async) {
+        if (async && sAsyncWriter == null) {
+            sAsyncWriter = new AsyncWriter();
+            sAsyncWriter.start();
+        } else if (!async && sAsyncWriter != null) {
+            sAsyncWriter.quit();
+            sAsyncWriter = null;
+        }
+    }
+
+    public static void v(String format) {
+        if (Log.VERBOSE >= sLevel) {
+            log(Log.VERBOSE, null, format, null);
+        }
+    }
+
+    public static void v(String format, Object arg) {
+        if (Log.VERBOSE >= sLevel) {
+            log(Log.VERBOSE, null, format, new Object[] { arg });
+        }
+    }
+
+    public static void v(String format, Object arg1, Object arg2) {
+        if (Log.VERBOSE >= sLevel) {
+            log(Log.VERBOSE, null, format, new Object[] { arg1, arg2 });
+        }
     }
 
     public static void v(String format, Object... args) {
-        if (DEBUG) {
-            Log.v(TAG, buildMessage(format, args));
+        if (Log.VERBOSE >= sLevel) {
+            log(Log.VERBOSE, null, format, args);
+        }
+    }
+
+    public static void d(String format) {
+        if (Log.DEBUG >= sLevel) {
+            log(Log.DEBUG, null, format, null);
+        }
+    }
+
+    public static void d(String format, Object arg) {
+        if (Log.DEBUG >= sLevel) {
+            log(Log.DEBUG, null, format, new Object[] { arg });
+        }
+    }
+
+    public static void d(String format, Object arg1, Object arg2) {
+        if (Log.DEBUG >= sLevel) {
+            log(Log.DEBUG, null, format, new Object[] { arg1, arg2 });
         }
     }
 
     public static void d(String format, Object... args) {
-        Log.d(TAG, buildMessage(format, args));
+        if (Log.DEBUG >= sLevel) {
+            log(Log.DEBUG, null, format, args);
+        }
     }
 
     public static void e(String format, Object... args) {
-        Log.e(TAG, buildMessage(format, args));
+        if (Log.ERROR >= sLevel) {
+            log(Log.ERROR, null, format, args);
+        }
     }
 
     public static void e(Throwable tr, String format, Object... args) {
-        Log.e(TAG, buildMessage(format, args), tr);
+        if (Log.ERROR >= sLevel) {
+            log(Log.ERROR, tr, format, args);
+        }
     }
 
     public static void wtf(String format, Object... args) {
-        Log.wtf(TAG, buildMessage(format, args));
+        log(Log.ASSERT, null, format, args);
     }
 
     public static void wtf(Throwable tr, String format, Object... args) {
-        Log.wtf(TAG, buildMessage(format, args), tr);
+        log(Log.ASSERT, tr, format, args);
+    }
+
+    private static void log(int priority, Throwable tr, String format, Object[] args) {
+        // The caller and thread are only known here; everything else can wait.
+        String caller = sCallerInfo ? findCaller() : null;
+        long threadId = Thread.currentThread().getId();
+        AsyncWriter writer = sAsyncWriter;
+        if (writer != null && priority < Log.ASSERT) {
+            writer.post(new Message(priority, tr, format, args, caller, threadId));
+        } else {
+            write(priority, TAG, buildMessage(format, args, caller, threadId), tr);
+        }
+    }
+
+    private static void write(int priority, String tag, String message, Throwable tr) {
+        LogSink sink = sSink;
+        if (sink != null) {
+            sink.println(priority, tag, message, tr);
+        } else if (priority == Log.ASSERT) {
+            Log.wtf(tag, message, tr);
+        } else if (tr != null) {
+            Log.println(priority, tag, message + '\n' + Log.getStackTraceString(tr));
+        } else {
+            Log.println(priority, tag, message);
+        }
     }
 
     /**
      * Formats the caller's provided message and prepends useful info like
      * calling thread ID and method name.
      */
-    private static String buildMessage(String format, Object... args) {
+    private static String buildMessage(String format, Object[] args, String caller,
+            long threadId) {
         String msg = (args == null) ? format : String.format(Locale.US, format, args);
-        StackTraceElement[] trace = new Throwable().fillInStackTrace().getStackTrace();
+        if (caller == null) {
+            return String.format(Locale.US, "[%d] %s", threadId, msg);
+        }
+        return String.format(Locale.US, "[%d] %s: %s", threadId, caller, msg);
+    }
 
-        String caller = "<unknown>";
-        // Walk up the stack looking for the first caller outside of VolleyLog.
-        // It will be at least two frames up, so start there.
-        for (int i = 2; i < trace.length; i++) {
-            Class<?> clazz = trace[i].getClass();
-            if (!clazz.equals(VolleyLog.class)) {
-                String callingClass = trace[i].getClassName();
+    /**
+     * Returns the class and method name of the first caller outside of VolleyLog.
+     */
+    private static String findCaller() {
+        StackTraceElement[] trace = new Throwable().fillInStackTrace().getStackTrace();
+        String volleyLog = VolleyLog.class.getName();
+        for (int i = 0; i < trace.length; i++) {
+            String callingClass = trace[i].getClassName();
+            if (!callingClass.startsWith(volleyLog)) {
                 callingClass = callingClass.substring(callingClass.lastIndexOf('.') + 1);
                 callingClass = callingClass.substring(callingClass.lastIndexOf('$') + 1);
+                return callingClass + "." + trace[i].getMethodName();
+            }
+        }
+        return "<unknown>";
+    }
+
+    /** A message waiting to be written by the {@link AsyncWriter}. */
+    private static class Message {
+        final int priority;
+        final Throwable tr;
+        final String format;
+        final Object[] args;
+        final String caller;
+        final long threadId;
+
+        Message(int priority, Throwable tr, String format, Object[] args, String caller,
+                long threadId) {
+            this.priority = priority;
+            this.tr = tr;
+            this.format = format;
+            this.args = args;
+            this.caller = caller;
+            this.threadId = threadId;
+        }
+    }
+
+    /**
+     * Thread formatting and writing messages in the order they were logged.
+     */
+    private static class AsyncWriter extends Thread {
+        private static final int CAPACITY = 1024;
+
+        private final BlockingQueue<Message> mQueue = new ArrayBlockingQueue<Message>(CAPACITY);
+        private final AtomicInteger mDropped = new AtomicInteger();
+        private volatile boolean mQuit = false;
+
+        AsyncWriter() {
+            super("VolleyLog");
+            setDaemon(true);
+        }
+
+        void post(Message message) {
+            if (!mQueue.offer(message)) {
+                mDropped.incrementAndGet();
+            }
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+        }
 
-                caller = callingClass + "." + trace[i].getMethodName();
-                break;
+        @Override
+        public void run() {
+            while (true) {
+                Message message;
+                try {
+                    message = mQueue.take();
+                } catch (InterruptedException e) {
+                    if (mQuit) {
+                        return;
+                    }
+                    continue;
+                }
+                int dropped = mDropped.getAndSet(0);
+                if (dropped > 0) {
+                    write(Log.WARN, TAG, "Dropped " + dropped + " log messages", null);
+                }
+                try {
+                    write(message.priority, TAG, buildMessage(message.format, message.args,
+                            message.caller, message.threadId), message.tr);
+                } catch (RuntimeException e) {
+                    // A bad format or argument mustn't stop logging.
+                    Log.e(TAG, "Unable to log " + message.format, e);
+                }
             }
         }
-        return String.format(Locale.US, "[%d] %s: %s",
-                Thread.currentThread().getId(), caller, msg);
     }
 
     /**
-     * A simple event log with records containing a name, thread ID, and timestamp.
+     * An event log with records containing a marker code, an optional detail string and
+     * number, thread ID, and timestamp. Records are kept in primitive arrays so that adding
+     * one doesn't allocate; names are only formatted when the log is dumped.
      */
     static class MarkerLog {
         public static final boolean ENABLED = VolleyLog.DEBUG;
@@ -109,28 +323,143 @@ public class VolleyLog {
         /** Minimum duration from first marker to last in an marker log to warrant logging. */
         private static final long MIN_DURATION_FOR_LOGGING_MS = 0;
 
-        private static class Marker {
-            public final String name;
-            public final long thread;
-            public final long time;
+        /** Markers beyond this many are dropped. */
+        private static final int MAX_MARKERS = 64;
+
+        /**
+         * Names of the {@link Request.Marker} codes, indexed by code. Names containing a format
+         * are formatted with the detail string and number of the marker.
+         */
+        private static final String[] NAMES = new String[] {
+                "%1$s",
+                "add-to-queue",
+                "priority-changed",
+                "priority-inherited",
+                "cache-queue-take",
+                "cache-discard-canceled",
+                "cache-handoff",
+                "cache-miss",
+                "cache-hit-expired",
+                "cache-hit",
+                "cache-hit-parsed",
+                "cache-hit-refresh-needed",
+                "handoff-response",
+                "network-queue-take",
+                "lane-borrowed-by-%1$s",
+                "network-discard-cancelled",
+                "network-http-complete",
+                "not-modified",
+                "network-body-spilled",
+                "%1$s-retry [timeout=%2$d]",
+                "%1$s-timeout-giveup [timeout=%2$d]",
+                "network-parse-complete",
+                "network-cache-written",
+                "local-queue-take",
+                "local-discard-cancelled",
+                "local-parse-complete",
+                "local-cache-written",
+                "read-full-size-image-from-file",
+                "read-from-file-scaled-times-%2$d",
+                "scaling-read-from-file-bitmap",
+                "read-full-size-image-from-resource",
+                "read-from-resource-scaled-times-%2$d",
+                "scaling-read-from-resource-bitmap",
+                "post-response",
+                "post-error",
+                "intermediate-response",
+                "canceled-at-delivery",
+                "done",
+                "network-body-streamed",
+                "network-body-decoded-%1$s [encoded=%2$d]",
+        };
+
+        private int[] mCodes = new int[16];
+        private String[] mDetails = new String[16];
+        private long[] mArgs = new long[16];
+        private long[] mTimesNanos = new long[16];
+        private long[] mThreadIds = new long[16];
+        private String[] mThreadNames = new String[16];
+        private int mSize;
+        private boolean mFinished = false;
 
-            public Marker(String name, long thread, long time) {
-                this.name = name;
-                this.thread = thread;
-                this.time = time;
+        /** Set once the request has finished, for the {@link FlightRecorder}. */
+        private Class<?> mRequestClass;
+        private String mUrl;
+        private long mId;
+
+        /**
+         * Returns a new log for a request, or null if neither debug logging nor the default
+         * {@link FlightRecorder} needs one.
+         */
+        static MarkerLog create() {
+            if (ENABLED) {
+                return new CheckedMarkerLog();
             }
+            return FlightRecorder.getDefault().isEnabled() ? new MarkerLog() : null;
         }
 
-        private final List<Marker> mMarkers = new ArrayList<Marker>();
-        private boolean mFinished = false;
+        /** Returns the name of a marker with the given code, detail string and number. */
+        static String getName(int code, String detail, long arg) {
+            if (code < 0 || code >= NAMES.length) {
+                return "marker-" + code;
+            }
+            String name = NAMES[code];
+            return name.indexOf('%') >= 0 ? String.format(Locale.US, name, detail, arg) : name;
+        }
 
-        /** Adds a marker to this log with the specified name. */
-        public synchronized void add(String name, long threadId) {
+        /** Adds a marker to this log, unless it has been finished. */
+        public synchronized void add(int code, String detail, long arg) {
             if (mFinished) {
-                throw new IllegalStateException("Marker added to finished log");
+                return;
+            }
+            if (mSize == mCodes.length && !grow()) {
+                return;
             }
+            Thread thread = Thread.currentThread();
+            mCodes[mSize] = code;
+            mDetails[mSize] = detail;
+            mArgs[mSize] = arg;
+            mTimesNanos[mSize] = System.nanoTime();
+            mThreadIds[mSize] = thread.getId();
+            mThreadNames[mSize] = thread.getName();
+            mSize++;
+        }
+
+        private boolean grow() {
+            if (mSize == MAX_MARKERS) {
+                return false;
+            }
+            int capacity = Math.min(mSize * 2, MAX_MARKERS);
+            int[] codes = new int[capacity];
+            System.arraycopy(mCodes, 0, codes, 0, mSize);
+            mCodes = codes;
+            mDetails = copyOf(mDetails, capacity);
+            mThreadNames = copyOf(mThreadNames, capacity);
+            mArgs = copyOf(mArgs, capacity);
+            mTimesNanos = copyOf(mTimesNanos, capacity);
+            mThreadIds = copyOf(mThreadIds, capacity);
+            return true;
+        }
+
+        private static String[] copyOf(String[] from, int capacity) {
+            String[] to = new String[capacity];
+            System.arraycopy(from, 0, to, 0, from.length);
+            return to;
+        }
+
+        private static long[] copyOf(long[] from, int capacity) {
+            long[] to = new long[capacity];
+            System.arraycopy(from, 0, to, 0, from.length);
+            return to;
+        }
 
-            mMarkers.add(new Marker(name, threadId, SystemClock.elapsedRealtime()));
+        synchronized boolean isFinished() {
+            return mFinished;
+        }
+
+        /** Closes the log without dumping it. */
+        public synchronized void close() {
+            mFinished = true;
         }
 
         /**
@@ -146,34 +475,73 @@ public class VolleyLog {
                 return;
             }
 
-            long prevTime = mMarkers.get(0).time;
+            long prevTime = mTimesNanos[0];
             d("(%-4d ms) %s", duration, header);
-            for (Marker marker : mMarkers) {
-                long thisTime = marker.time;
-                d("(+%-4d) [%2d] %s", (thisTime - prevTime), marker.thread, marker.name);
+            for (int i = 0; i < mSize; i++) {
+                long thisTime = mTimesNanos[i];
+                d("(+%-4d) [%2d] %s", (thisTime - prevTime) / 1000000, mThreadIds[i],
+                        getName(mCodes[i], mDetails[i], mArgs[i]));
                 prevTime = thisTime;
             }
         }
 
+        /** Returns the time difference between the first and last events in this log. */
+        private long getTotalDuration() {
+            if (mSize == 0) {
+                return 0;
+            }
+            return (mTimesNanos[mSize - 1] - mTimesNanos[0]) / 1000000;
+        }
+
+        synchronized void setRequest(Class<?> requestClass, String url, long id) {
+            mRequestClass = requestClass;
+            mUrl = url;
+            mId = id;
+        }
+
+        Class<?> getRequestClass() {
+            return mRequestClass;
+        }
+
+        String getUrl() {
+            return mUrl;
+        }
+
+        long getId() {
+            return mId;
+        }
+
+        /** Accessors for the {@link FlightRecorder}, which holds this log's lock. */
+        int size() {
+            return mSize;
+        }
+
+        String getName(int index) {
+            return getName(mCodes[index], mDetails[index], mArgs[index]);
+        }
+
+        long getTimeNanos(int index) {
+            return mTimesNanos[index];
+        }
+
+        String getThreadName(int index) {
+            return mThreadNames[index];
+        }
+    }
+
+    /**
+     * A {@link MarkerLog} that complains about requests collected without finishing. Only used
+     * while debugging, as finalizers make objects costly to allocate and collect.
+     */
+    static class CheckedMarkerLog extends MarkerLog {
         @Override
         protected void finalize() throws Throwable {
             // Catch requests that have been collected (and hence end-of-lifed)
             // but had no debugging output printed for them.
-            if (!mFinished) {
+            if (!isFinished()) {
                 finish("Request on the loose");
                 e("Marker log finalized without finish() - uncaught exit point for request");
             }
         }
-
-        /** Returns the time difference between the first and last events in this log. */
-        private long getTotalDuration() {
-            if (mMarkers.size() == 0) {
-                return 0;
-            }
-
-            long first = mMarkers.get(0).time;
-            long last = mMarkers.get(mMarkers.size() - 1).time;
-            return last - first;
-        }
     }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.misc.LatencyHistogram;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on registry of per-stage latencies and counters, broken down by request class and
+ * host.
+ *
+ * <p>Unlike {@link VolleyLog.MarkerLog}, recording is cheap enough for production use: every
+ * request resolves its series once, after which recording a stage is a lock-free histogram
+ * update. Latencies are recorded in microseconds, up to about a minute; longer ones count as
+ * the longest seen. Read the data with {@link #report(MetricsSink)} or
+ * {@link #getHistogram(Stage)}.</p>
+ */
+public class VolleyMetrics {
+
+    /** The stages of a request that are timed. */
+    public enum Stage {
+        /** Waiting in the cache triage queue. */
+        CACHE_QUEUE_WAIT,
+        /** Reading the entry from the cache. */
+        CACHE_LOOKUP,
+        /** Waiting in a network queue. */
+        NETWORK_QUEUE_WAIT,
+        /** Waiting in the local queue. */
+        LOCAL_QUEUE_WAIT,
+        /** Performing the request over the network, including retries. */
+        NETWORK,
+        /** Parsing the response. */
+        PARSE,
+        /** Writing the response to the cache. */
+        CACHE_WRITE,
+        /** From posting a response or error until the listener has returned. */
+        DELIVERY
+    }
+
+    /** The events that are counted. */
+    public enum Counter {
+        CACHE_HIT,
+        CACHE_MISS,
+        CACHE_EXPIRED,
+        CACHE_REFRESH,
+        NETWORK_REQUEST,
+        RETRY,
+        ERROR
+    }
+
+    /**
+     * Receives the contents of the registry; see {@link #report(MetricsSink)}.
+     */
+    public interface MetricsSink {
+        /** Called for every stage of every series that has samples. */
+        void onHistogram(String requestClass, String host, Stage stage,
+                LatencyHistogram histogram);
+
+        /** Called for every non-zero counter of every series. */
+        void onCounter(String requestClass, String host, Counter counter, long value);
+    }
+
+    /** Upper bound on the number of distinct series, each about 12 KB. */
+    private static final int MAX_SERIES = 64;
+
+    /** Longest latency told apart from longer ones, about a minute. */
+    private static final long MAX_LATENCY_US = 1L << 26;
+
+    /** Buckets per power of two, as a power of two: latencies are within 1 in 8. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** Dimension value for series recorded once {@link #MAX_SERIES} is reached. */
+    private static final String OTHER = "*";
+
+    private static final VolleyMetrics sDefault = new VolleyMetrics();
+
+    private final ConcurrentHashMap<Key, Series> mSeries = new ConcurrentHashMap<Key, Series>();
+
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Returns the registry the dispatchers record to.
+     */
+    public static VolleyMetrics getDefault() {
+        return sDefault;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Returns the current time to pass to {@link #record(Request, Stage, long)}.
+     */
+    public long startTimer() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code> for the given stage.
+     */
+    public void record(Request<?> request, Stage stage, long startNanos) {
+        if (mEnabled && startNanos != 0) {
+            getSeries(request).histograms[stage.ordinal()].record(
+                    (System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    /**
+     * Notes that the request was just put in a queue.
+     */
+    public void markQueued(Request<?> request) {
+        request.setQueuedNanos(startTimer());
+    }
+
+    /**
+     * Records the time since {@link #markQueued(Request)} for the given wait stage.
+     */
+    public void recordQueueWait(Request<?> request, Stage stage) {
+        record(request, stage, request.getQueuedNanos());
+    }
+
+    /**
+     * Increments a counter.
+     */
+    public void count(Request<?> request, Counter counter) {
+        if (mEnabled) {
+            getSeries(request).counters.incrementAndGet(counter.ordinal());
+        }
+    }
+
+    /**
+     * Passes every series to the given sink.
+     */
+    public void report(MetricsSink sink) {
+        Stage[] stages = Stage.values();
+        Counter[] counters = Counter.values();
+        for (Series series : mSeries.values()) {
+            for (Stage stage : stages) {
+                LatencyHistogram histogram = series.histograms[stage.ordinal()];
+                if (histogram.getCount() > 0) {
+                    sink.onHistogram(series.key.requestClass, series.key.host, stage, histogram);
+                }
+            }
+            for (Counter counter : counters) {
+                long value = series.counters.get(counter.ordinal());
+                if (value != 0) {
+                    sink.onCounter(series.key.requestClass, series.key.host, counter, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a new histogram merging the given stage of all series.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        LatencyHistogram merged = new LatencyHistogram(SUB_BUCKET_BITS, MAX_LATENCY_US);
+        for (Series series : mSeries.values()) {
+            merged.merge(series.histograms[stage.ordinal()]);
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the sum of the given counter over all series.
+     */
+    public long getCount(Counter counter) {
+        long total = 0;
+        for (Series series : mSeries.values()) {
+            total += series.counters.get(counter.ordinal());
+        }
+        return total;
+    }
+
+    /**
+     * Discards everything recorded so far. Requests already in flight finish recording to
+     * their discarded series.
+     */
+    public void reset() {
+        mSeries.clear();
+    }
+
+    private Series getSeries(Request<?> request) {
+        Series series = request.getMetricsSeries();
+        if (series == null || series.registry != this) {
+            series = lookupSeries(new Key(request.getClass().getName(),
+                    LatencyEstimator.getHost(request.getUrl())));
+            request.setMetricsSeries(series);
+        }
+        return series;
+    }
+
+    private Series lookupSeries(Key key) {
+        Series series = mSeries.get(key);
+        if (series == null) {
+            if (mSeries.size() >= MAX_SERIES) {
+                key = new Key(OTHER, OTHER);
+            }
+            Series newSeries = new Series(this, key);
+            series = mSeries.putIfAbsent(key, newSeries);
+            if (series == null) {
+                series = newSeries;
+            }
+        }
+        return series;
+    }
+
+    private static class Key {
+        final String requestClass;
+        final String host;
+        private final int mHashCode;
+
+        Key(String requestClass, String host) {
+            this.requestClass = requestClass;
+            this.host = host == null ? OTHER : host;
+            mHashCode = 31 * requestClass.hashCode() + this.host.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return requestClass.equals(other.requestClass) && host.equals(other.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /** Histograms and counters of one request class and host. */
+    static class Series {
+        final VolleyMetrics registry;
+        final Key key;
+        /** Share a single array of buckets. */
+        final LatencyHistogram[] histograms = LatencyHistogram.newGroup(Stage.values().length,
+                SUB_BUCKET_BITS, MAX_LATENCY_US);
+        final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+        Series(VolleyMetrics registry, Key key) {
+            this.registry = registry;
+            this.key = key;
+        }
+    }
+}
@@ -98,7 +98,7 @@ public class BitmapCache implements ImageCache {
      */
     private void init(int memCacheSize) {
         // Set up memory cache
-    	VolleyLog.d(TAG, "Memory cache created (size = " + memCacheSize + "KB)");
+    	VolleyLog.d("Memory cache created (size = %dKB)", memCacheSize);
         mMemoryCache = new LruCache<String, Bitmap>(memCacheSize) {
             /**
              * Measure item size in kilobytes rather than units which is more practical
@@ -125,7 +125,7 @@ public class BitmapCache implements ImageCache {
         synchronized (mMemoryCache) {
             // Add to memory cache
             if (mMemoryCache.get(data) == null) {
-            	VolleyLog.d(TAG, "Memory cache put - " + data);
+            	VolleyLog.v("Memory cache put - %s", data);
                 mMemoryCache.put(data, bitmap);
             }
         }
@@ -142,11 +142,11 @@ public class BitmapCache implements ImageCache {
             synchronized (mMemoryCache) {
                 final Bitmap memBitmap = mMemoryCache.get(data);
                 if (memBitmap != null) {
-                	VolleyLog.d(TAG, "Memory cache hit - " + data);
+                	VolleyLog.v("Memory cache hit - %s", data);
                     return memBitmap;
                 }
             }
-            VolleyLog.d(TAG, "Memory cache miss - " + data);
+            VolleyLog.v("Memory cache miss - %s", data);
         }
         return null;
     }
@@ -157,7 +157,7 @@ public class BitmapCache implements ImageCache {
     public void clearCache() {
         if (mMemoryCache != null) {
             mMemoryCache.evictAll();
-            VolleyLog.d(TAG, "Memory cache cleared");
+            VolleyLog.d("Memory cache cleared");
         }
     }
 
@@ -237,7 +237,7 @@ public class BitmapCache implements ImageCache {
         synchronized (mMemoryCache) {
             // Add to memory cache
             //if (mMemoryCache.get(data) == null) {
-            	VolleyLog.d(TAG, "Memory cache remove - " + url);
+            	VolleyLog.v("Memory cache remove - %s", url);
                 mMemoryCache.remove(url);
             //}
         }
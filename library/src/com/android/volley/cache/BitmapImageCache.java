@@ -105,7 +105,7 @@ public class BitmapImageCache implements ImageCache {
      */
     private void init(int memCacheSize) {
         // Set up memory cache
-    	VolleyLog.d(TAG, "Memory cache created (size = " + memCacheSize + "KB)");
+    	VolleyLog.d("Memory cache created (size = %dKB)", memCacheSize);
         mMemoryCache = new LruCache<String, Bitmap>(memCacheSize) {
             /**
              * Measure item size in kilobytes rather than units which is more practical
@@ -120,7 +120,7 @@ public class BitmapImageCache implements ImageCache {
             @Override
             protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
             	super.entryRemoved(evicted, key, oldValue, newValue);
-            	VolleyLog.d(TAG, "Memory cache entry removed - " + key);
+            	VolleyLog.v("Memory cache entry removed - %s", key);
             }
         };
     }
@@ -138,7 +138,7 @@ public class BitmapImageCache implements ImageCache {
         synchronized (mMemoryCache) {
             // Add to memory cache
             //if (mMemoryCache.get(data) == null) {
-            	VolleyLog.d(TAG, "Memory cache put - " + data);
+            	VolleyLog.v("Memory cache put - %s", data);
                 mMemoryCache.put(data, bitmap);
             //}
         }
@@ -155,11 +155,11 @@ public class BitmapImageCache implements ImageCache {
             synchronized (mMemoryCache) {
                 final Bitmap memBitmap = mMemoryCache.get(data);
                 if (memBitmap != null) {
-                	VolleyLog.d(TAG, "Memory cache hit - " + data);
+                	VolleyLog.v("Memory cache hit - %s", data);
                     return memBitmap;
                 }
             }
-            VolleyLog.d(TAG, "Memory cache miss - " + data);
+            VolleyLog.v("Memory cache miss - %s", data);
         }
         return null;
     }
@@ -170,7 +170,7 @@ public class BitmapImageCache implements ImageCache {
     public void clearCache() {
         if (mMemoryCache != null) {
             mMemoryCache.evictAll();
-            VolleyLog.d(TAG, "Memory cache cleared");
+            VolleyLog.d("Memory cache cleared");
         }
     }
 
@@ -286,7 +286,7 @@ public class BitmapImageCache implements ImageCache {
         synchronized (mMemoryCache) {
             // Add to memory cache
             //if (mMemoryCache.get(data) == null) {
-            	VolleyLog.d(TAG, "Memory cache remove - " + url);
+            	VolleyLog.v("Memory cache remove - %s", url);
                 mMemoryCache.remove(url);
             //}
         }
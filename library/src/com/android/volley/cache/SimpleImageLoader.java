@@ -31,6 +31,7 @@ import android.os.Build;
 import android.widget.ImageView;
 
 import com.android.volley.Cache;
+import com.android.volley.DispatcherPool;
 import com.android.volley.Network;
 import com.android.volley.RequestQueue;
 import com.android.volley.cache.DiskLruBasedCache.ImageCacheParams;
@@ -381,7 +382,7 @@ public class SimpleImageLoader extends ImageLoader {
         else{
         	cache = new DiskLruBasedCache(Utils.getDiskCacheDir(context, CACHE_DIR));
         }
-        RequestQueue queue = new RequestQueue(cache, network);
+        RequestQueue queue = new RequestQueue(cache, network, DispatcherPool.getDefault());
         queue.start();
         return queue;
     }
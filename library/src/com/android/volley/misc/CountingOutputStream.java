@@ -21,10 +21,26 @@ public class CountingOutputStream extends DataOutputStream {
 
     public void write(int b) throws IOException {
         out.write(b);
+        onWritten(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        onWritten(len);
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+
+    private void onWritten(int count) {
+        transferred += count;
         if (progressListener != null) {
-            transferred++;
-            int prog = (int) (transferred * 100 / fileLength);
-            progressListener.onProgress(transferred, prog);
+            progressListener.onProgress(transferred, fileLength);
         }
     }
 
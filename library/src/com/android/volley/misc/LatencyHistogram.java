@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.misc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear bucketed histogram of non-negative values.
+ *
+ * <p>Each power of two is split into a number of linear buckets, 8 by default, so any recorded
+ * value is reported with a relative error of at most 1 in 8. Histograms can be limited to the
+ * values they are expected to hold; larger values all land in the last bucket, which reports
+ * the largest value recorded. Recording is lock-free and allocation free, which makes it cheap
+ * enough to be updated from every dispatcher thread.</p>
+ */
+public class LatencyHistogram {
+
+    /** Number of linear buckets per power of two by default, as a power of two. */
+    private static final int DEFAULT_SUB_BUCKET_BITS = 3;
+
+    private final int mSubBucketBits;
+    private final long mMaxValue;
+    private final int mBucketCount;
+    private final AtomicLongArray mCounts;
+    /** Index of the first bucket in {@link #mCounts}, which may be shared. */
+    private final int mOffset;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Creates a histogram of 8 buckets per power of two covering every non-negative long.
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param subBucketBits Number of linear buckets per power of two, as a power of two
+     * @param maxValue Largest value told apart from larger ones
+     */
+    public LatencyHistogram(int subBucketBits, long maxValue) {
+        this(subBucketBits, maxValue, null, 0);
+    }
+
+    private LatencyHistogram(int subBucketBits, long maxValue, AtomicLongArray counts,
+            int offset) {
+        mSubBucketBits = subBucketBits;
+        mMaxValue = maxValue;
+        mBucketCount = bucketIndex(subBucketBits, maxValue) + 1;
+        mCounts = counts != null ? counts : new AtomicLongArray(mBucketCount);
+        mOffset = offset;
+    }
+
+    /**
+     * Returns <code>size</code> histograms sharing a single array of buckets.
+     *
+     * @see #LatencyHistogram(int, long)
+     */
+    public static LatencyHistogram[] newGroup(int size, int subBucketBits, long maxValue) {
+        int bucketCount = bucketIndex(subBucketBits, maxValue) + 1;
+        AtomicLongArray counts = new AtomicLongArray(size * bucketCount);
+        LatencyHistogram[] histograms = new LatencyHistogram[size];
+        for (int i = 0; i < size; i++) {
+            histograms[i] = new LatencyHistogram(subBucketBits, maxValue, counts,
+                    i * bucketCount);
+        }
+        return histograms;
+    }
+
+    /**
+     * Returns a new, empty histogram with the same buckets as this one.
+     */
+    public LatencyHistogram newEmpty() {
+        return new LatencyHistogram(mSubBucketBits, mMaxValue);
+    }
+
+    /**
+     * Records a single value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = Math.min(bucketIndex(mSubBucketBits, value), mBucketCount - 1);
+        mCounts.incrementAndGet(mOffset + index);
+        mTotalCount.incrementAndGet();
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values currently represented by this histogram.
+     */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * Returns the largest value recorded since creation or the last {@link #reset()}.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or -1 if
+     * the histogram is empty.
+     * @param percentile Percentile in the range [0, 1]
+     */
+    public long getPercentile(double percentile) {
+        long total = mTotalCount.get();
+        if (total <= 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(Math.max(0d, Math.min(1d, percentile)) * total);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < mBucketCount - 1; i++) {
+            seen += mCounts.get(mOffset + i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Halves every bucket so that older samples carry less weight than new ones.
+     */
+    public void decay() {
+        long removed = 0;
+        for (int i = mOffset; i < mOffset + mBucketCount; i++) {
+            long count;
+            do {
+                count = mCounts.get(i);
+            } while (count != 0 && !mCounts.compareAndSet(i, count, count >> 1));
+            removed += count - (count >> 1);
+        }
+        mTotalCount.addAndGet(-removed);
+    }
+
+    /**
+     * Adds all samples of the given histogram, which must have the same buckets, to this one.
+     *
+     * @see #newEmpty()
+     */
+    public void merge(LatencyHistogram other) {
+        if (other.mSubBucketBits != mSubBucketBits || other.mMaxValue != mMaxValue) {
+            throw new IllegalArgumentException("Histograms have different buckets");
+        }
+        long added = 0;
+        for (int i = 0; i < mBucketCount; i++) {
+            long count = other.mCounts.get(other.mOffset + i);
+            if (count != 0) {
+                mCounts.addAndGet(mOffset + i, count);
+                added += count;
+            }
+        }
+        mTotalCount.addAndGet(added);
+        long otherMax = other.mMax.get();
+        long max;
+        while (otherMax > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Clears all recorded samples.
+     */
+    public void reset() {
+        for (int i = mOffset; i < mOffset + mBucketCount; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mMax.set(0);
+    }
+
+    private static int bucketIndex(int subBucketBits, long value) {
+        int subBuckets = 1 << subBucketBits;
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    private long bucketUpperBound(int index) {
+        int subBuckets = 1 << mSubBucketBits;
+        if (index < subBuckets) {
+            return index;
+        }
+        int exponent = index / subBuckets + mSubBucketBits - 1;
+        long subBucket = index % subBuckets;
+        long width = 1L << (exponent - mSubBucketBits);
+        long lower = (1L << exponent) + subBucket * width;
+        return lower + width - 1;
+    }
+}
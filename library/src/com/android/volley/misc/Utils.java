@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.util.Map;
 
 /**
  * Class containing some static utility methods.
@@ -283,6 +284,18 @@ public class Utils {
         return value != null && value.startsWith("bytes");
     }
 
+    /**
+     * Returns true if response headers, as passed to the parse methods of requests, announce
+     * support for byte ranges.
+     */
+    public static boolean isSupportRange(Map<String, String> headers) {
+        if (TextUtils.equals(headers.get("Accept-Ranges"), "bytes")) {
+            return true;
+        }
+        String value = headers.get("Content-Range");
+        return value != null && value.startsWith("bytes");
+    }
+
     public static boolean isGzipContent(HttpResponse response) {
         return TextUtils.equals(getHeader(response, "Content-Encoding"), "gzip");
     }
@@ -16,29 +16,50 @@
 
 package com.android.volley.request;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 
-import com.android.volley.NetworkResponse;
-import com.android.volley.Request;
-import com.android.volley.Response;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.Response.ProgressListener;
-import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.VolleyLog;
+import com.android.volley.error.AuthFailureError;
+import com.android.volley.error.VolleyError;
+import com.android.volley.misc.Utils;
 
-import java.io.FileNotFoundException;
+import org.apache.http.HttpStatus;
+
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * A canned request for retrieving the response body at a given URL as a String.
+ * A canned request for downloading the response body at a given URL to a file.
+ * <p>
+ * The body is streamed to <code>&lt;path&gt;.part</code> and renamed to the download path once
+ * complete, so the download path never holds a partial file. If the server supports byte
+ * ranges, an interrupted download, whether in a later attempt or a later request for the same
+ * path, resumes from the end of the partial file with a Range request. An If-Range header
+ * carrying the ETag or Last-Modified date of the first response makes the server send the
+ * whole file instead if it has changed since. Downloads are never cached.
  */
-public class DownloadRequest extends Request<String> implements ProgressListener {
+public class DownloadRequest extends StreamingRequest<String> implements ProgressListener {
+    /** Minimum time between two progress updates, except for the final one. */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
     private final Listener<String> mListener;
     private final String mDownloadPath;
     private ProgressListener mProgressListener;
 
+    /** Size of the partial file the current attempt appends to. */
+    private volatile long mResumeOffset;
+    private long mLastProgressMs;
+
     /**
      * Creates a new request with the given method.
      *
@@ -50,6 +71,7 @@ public class DownloadRequest extends Request<String> implements ProgressListener
     public DownloadRequest(String url, String download_path, Listener<String> listener,
             ErrorListener errorListener) {
         super(Method.GET, url, errorListener);
+        setLane(RequestQueue.LANE_BULK);
         mDownloadPath = download_path;
         mListener = listener;
     }
@@ -63,6 +85,46 @@ public class DownloadRequest extends Request<String> implements ProgressListener
     	mProgressListener = listener;
     }
 
+    /**
+     * Returns the file the download is written to until it is complete.
+     */
+    public File getPartialFile() {
+        return new File(mDownloadPath + ".part");
+    }
+
+    /** File holding the validator of the partial file; see {@link #writeValidator(Map)}. */
+    private File getValidatorFile() {
+        return new File(mDownloadPath + ".part.meta");
+    }
+
+    /**
+     * Deletes what has been downloaded so far, so that the next request starts over.
+     */
+    public void deletePartialDownload() {
+        getPartialFile().delete();
+        getValidatorFile().delete();
+    }
+
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = super.getHeaders();
+        long partLength = getPartialFile().length();
+        String validator = partLength > 0 ? readValidator() : null;
+        if (validator == null) {
+            return headers;
+        }
+        Map<String, String> rangeHeaders = new HashMap<String, String>(headers);
+        rangeHeaders.put("Range", "bytes=" + partLength + "-");
+        rangeHeaders.put("If-Range", validator);
+        addMarker(Marker.CUSTOM, "download-resume", partLength);
+        return rangeHeaders;
+    }
+
     @Override
     protected void deliverResponse(String response) {
     	if(null != mListener){
@@ -71,34 +133,140 @@ public class DownloadRequest extends Request<String> implements ProgressListener
     }
 
     @Override
-    protected Response<String> parseNetworkResponse(NetworkResponse response) {
-        String parsed = null;
+    protected String parseStream(int statusCode, Map<String, String> headers, InputStream body)
+            throws IOException, VolleyError {
+        File part = getPartialFile();
+        boolean append = false;
+        if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+            long start = parseRangeStart(headers.get("Content-Range"));
+            if (start != part.length()) {
+                // Not the range that was asked for; start over in the next attempt.
+                deletePartialDownload();
+                throw new IOException("Unexpected Content-Range " + headers.get("Content-Range"));
+            }
+            append = true;
+        } else {
+            // A full body: whatever was downloaded before is stale.
+            writeValidator(headers);
+        }
+        mResumeOffset = append ? part.length() : 0;
+
+        FileOutputStream out = new FileOutputStream(part, append);
         try {
-            byte[] data = response.data;
-		    //convert array of bytes into file
-		    FileOutputStream fileOuputStream = new FileOutputStream(mDownloadPath); 
-		    fileOuputStream.write(data);
-		    fileOuputStream.close();
-		    parsed = mDownloadPath;
-        } catch (UnsupportedEncodingException e) {
-            parsed = new String(response.data);
-        } catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}  catch (IOException e) {
-			e.printStackTrace();
-		} finally{
-			if(TextUtils.isEmpty(parsed)){
-				parsed = "";
-			}
-		}
-        
-        return Response.success(parsed, HttpHeaderParser.parseCacheHeaders(response, getSoftExpire(), getExpire()));
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+            // Make sure the data is on disk before the rename makes it visible.
+            out.getFD().sync();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        File target = new File(mDownloadPath);
+        if (!part.renameTo(target)) {
+            throw new IOException("Unable to rename " + part + " to " + target);
+        }
+        getValidatorFile().delete();
+        return mDownloadPath;
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        if (volleyError.networkResponse != null && volleyError.networkResponse.statusCode
+                == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            // The partial file doesn't match the resource anymore.
+            deletePartialDownload();
+        }
+        return super.parseNetworkError(volleyError);
+    }
+
+    /**
+     * Returns the first byte position of a Content-Range header such as
+     * <code>bytes 100-199/200</code>, or -1 if it can't be parsed.
+     */
+    private static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Remembers the validator of a full response for resuming it, or forgets any previous one
+     * if the server doesn't support ranges or sends no usable validator. Weak ETags can't be
+     * used with If-Range, Last-Modified dates are used instead.
+     */
+    private void writeValidator(Map<String, String> headers) {
+        File file = getValidatorFile();
+        String etag = headers.get("ETag");
+        String validator = etag != null && !etag.startsWith("W/")
+                ? etag : headers.get("Last-Modified");
+        if (!Utils.isSupportRange(headers) || TextUtils.isEmpty(validator)) {
+            file.delete();
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(validator.getBytes("UTF-8"));
+        } catch (IOException e) {
+            // Only resuming is lost.
+            VolleyLog.d("Unable to write %s: %s", file, e.toString());
+            file.delete();
+        } finally {
+            Utils.closeQuietly(out);
+        }
+    }
+
+    /** Returns the validator saved by {@link #writeValidator(Map)}, or null if there is none. */
+    private String readValidator() {
+        File file = getValidatorFile();
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            int count;
+            while (read < data.length && (count = in.read(data, read, data.length - read)) != -1) {
+                read += count;
+            }
+            String validator = new String(data, 0, read, "UTF-8").trim();
+            return validator.length() > 0 ? validator : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
     }
 
 	@Override
 	public void onProgress(long transferredBytes, long totalSize) {
-		if(null != mProgressListener){
-			mProgressListener.onProgress(transferredBytes, totalSize);
+		if (null == mProgressListener) {
+			return;
+		}
+		// Count what previous attempts downloaded, and don't flood the listener.
+		long offset = mResumeOffset;
+		long total = totalSize >= 0 ? totalSize + offset : totalSize;
+		long now = SystemClock.uptimeMillis();
+		boolean done = totalSize >= 0 && transferredBytes >= totalSize;
+		if (!done && now - mLastProgressMs < PROGRESS_INTERVAL_MS) {
+			return;
 		}
+		mLastProgressMs = now;
+		mProgressListener.onProgress(transferredBytes + offset, total);
 	}
-}
\ No newline at end of file
+}
@@ -5,14 +5,18 @@ import com.android.volley.Response;
 import com.android.volley.error.ParseError;
 import com.android.volley.toolbox.HttpHeaderParser;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 
 /**
  * A canned request for retrieving the parse the gzip response body at a given URL as a String using a GZIPInputStream.
+ * <p>
+ * {@link com.android.volley.toolbox.BasicNetwork} already decodes responses sent with a gzip
+ * Content-Encoding, so only bodies that are still gzip data, such as <code>.gz</code> files,
+ * are decompressed here; anything else is decoded as it is.
  */
 public class GZipRequest extends StringRequest {
 
@@ -41,21 +45,36 @@ public class GZipRequest extends StringRequest {
 
 	@Override
 	protected Response<String> parseNetworkResponse(NetworkResponse response) {
-		String output = "";
+		String output;
 		try {
-			GZIPInputStream gStream = new GZIPInputStream(new ByteArrayInputStream(response.data));
-			InputStreamReader reader = new InputStreamReader(gStream);
-			BufferedReader in = new BufferedReader(reader);
-			String read;
-			while ((read = in.readLine()) != null) {
-				output += read;
+			byte[] data = response.data;
+			if (isGzip(data)) {
+				data = gunzip(data);
 			}
-			reader.close();
-			in.close();
-			gStream.close();
+			output = new String(data, HttpHeaderParser.parseCharset(response.headers));
 		} catch (IOException e) {
-			return Response.error(new ParseError());
+			return Response.error(new ParseError(e));
 		}
 		return Response.success(output, HttpHeaderParser.parseCacheHeaders(response, getSoftExpire(), getExpire()));
 	}
-}
\ No newline at end of file
+
+	/** Returns true if the data starts with the gzip magic number. */
+	private static boolean isGzip(byte[] data) {
+		return data.length >= 2 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b;
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
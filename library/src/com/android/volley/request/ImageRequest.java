@@ -28,9 +28,11 @@ import android.os.Build;
 import android.provider.MediaStore.Images;
 import android.widget.ImageView.ScaleType;
 
-import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.AdaptiveRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
+import com.android.volley.Request.Marker;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyLog;
 import com.android.volley.error.ParseError;
@@ -46,7 +48,7 @@ import java.io.FileNotFoundException;
  * back with a decoded Bitmap.
  */
 public class ImageRequest extends Request<Bitmap> {
-    /** Socket timeout in milliseconds for image requests */
+    /** Socket timeout in milliseconds for image requests until host latencies are known */
     public static final int DEFAULT_IMAGE_TIMEOUT_MS = 1000;
 
     /** Default number of retries for image requests */
@@ -95,9 +97,10 @@ public class ImageRequest extends Request<Bitmap> {
     public ImageRequest(String url, Resources resources, ContentResolver contentResolver,
     		Response.Listener<Bitmap> listener, int maxWidth, int maxHeight, ScaleType scaleType,
             Config decodeConfig, Response.ErrorListener errorListener) {
-        super(Method.GET, url, errorListener);
-        setRetryPolicy(
-                new DefaultRetryPolicy(DEFAULT_IMAGE_TIMEOUT_MS, DEFAULT_IMAGE_MAX_RETRIES, DEFAULT_IMAGE_BACKOFF_MULT));
+        super(Method.GET, url, Priority.LOW, errorListener, null);
+        setRetryPolicy(new AdaptiveRetryPolicy(url, DEFAULT_IMAGE_TIMEOUT_MS,
+                DEFAULT_IMAGE_MAX_RETRIES, DEFAULT_IMAGE_BACKOFF_MULT));
+        setLane(RequestQueue.LANE_IMAGES);
         
         mResources = resources;
         mContentResolver = contentResolver;
@@ -121,11 +124,6 @@ public class ImageRequest extends Request<Bitmap> {
                 ScaleType.CENTER_INSIDE, decodeConfig, errorListener);
     }
 
-    @Override
-    public Priority getPriority() {
-        return Priority.LOW;
-    }
-
     /**
      * Scales one side of a rectangle to fit aspect ratio.
      *
@@ -174,6 +172,19 @@ public class ImageRequest extends Request<Bitmap> {
         return resized;
     }
 
+    /**
+     * Decoded bitmaps are shared as long as the duplicate asks for the same decode.
+     */
+    @Override
+    protected boolean canShareResponseWith(Request<?> other) {
+        if (other.getClass() != getClass()) {
+            return false;
+        }
+        ImageRequest that = (ImageRequest) other;
+        return mMaxWidth == that.mMaxWidth && mMaxHeight == that.mMaxHeight
+                && mScaleType == that.mScaleType && mDecodeConfig == that.mDecodeConfig;
+    }
+
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
         // Serialize all decode on a global lock to reduce concurrent heap usage.
@@ -222,7 +233,7 @@ public class ImageRequest extends Request<Bitmap> {
 		if (mMaxWidth == 0 && mMaxHeight == 0) {
 
 			bitmap = getVideoFrame(bitmapFile.getAbsolutePath());
-			addMarker("read-full-size-image-from-file");
+			addMarker(Marker.READ_FULL_SIZE_IMAGE_FROM_FILE);
 		} else {
 			// If we have to resize this image, first get the natural bounds.
 			decodeOptions.inJustDecodeBounds = true;
@@ -240,15 +251,14 @@ public class ImageRequest extends Request<Bitmap> {
 			decodeOptions.inJustDecodeBounds = false;
 			decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
 			Bitmap tempBitmap = getVideoFrame(bitmapFile.getAbsolutePath());
-			addMarker(String.format("read-from-file-scaled-times-%d",
-					decodeOptions.inSampleSize));
+			addMarker(Marker.READ_FROM_FILE_SCALED, null, decodeOptions.inSampleSize);
 			// If necessary, scale down to the maximal acceptable size.
 			if (tempBitmap != null
 					&& (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
 				bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth,
 						desiredHeight, true);
 				tempBitmap.recycle();
-				addMarker("scaling-read-from-file-bitmap");
+				addMarker(Marker.SCALING_READ_FROM_FILE_BITMAP);
 			} else {
 				bitmap = tempBitmap;
 			}
@@ -291,7 +301,7 @@ public class ImageRequest extends Request<Bitmap> {
 		if (mMaxWidth == 0 && mMaxHeight == 0) {
 
 			bitmap = BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
-			addMarker("read-full-size-image-from-file");
+			addMarker(Marker.READ_FULL_SIZE_IMAGE_FROM_FILE);
 		} else {
 			// If we have to resize this image, first get the natural bounds.
 			decodeOptions.inJustDecodeBounds = true;
@@ -309,15 +319,14 @@ public class ImageRequest extends Request<Bitmap> {
 			decodeOptions.inJustDecodeBounds = false;
 			decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
 			Bitmap tempBitmap = BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), decodeOptions);
-			addMarker(String.format("read-from-file-scaled-times-%d",
-					decodeOptions.inSampleSize));
+			addMarker(Marker.READ_FROM_FILE_SCALED, null, decodeOptions.inSampleSize);
 			// If necessary, scale down to the maximal acceptable size.
 			if (tempBitmap != null
 					&& (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
 				bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth,
 						desiredHeight, true);
 				tempBitmap.recycle();
-				addMarker("scaling-read-from-file-bitmap");
+				addMarker(Marker.SCALING_READ_FROM_FILE_BITMAP);
 			} else {
 				bitmap = tempBitmap;
 			}
@@ -354,7 +363,7 @@ public class ImageRequest extends Request<Bitmap> {
 		
 		if (mMaxWidth == 0 && mMaxHeight == 0) {
 			bitmap = ImageUtils.decodeStream(mContentResolver, imageUri, decodeOptions);
-			addMarker("read-full-size-image-from-resource");
+			addMarker(Marker.READ_FULL_SIZE_IMAGE_FROM_RESOURCE);
 		} else {
 			// If we have to resize this image, first get the natural bounds.
 			decodeOptions.inJustDecodeBounds = true;
@@ -373,12 +382,12 @@ public class ImageRequest extends Request<Bitmap> {
 
 			decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
 			Bitmap tempBitmap = ImageUtils.decodeStream(mContentResolver, imageUri, decodeOptions);
-			addMarker(String.format("read-from-resource-scaled-times-%d", decodeOptions.inSampleSize));
+			addMarker(Marker.READ_FROM_RESOURCE_SCALED, null, decodeOptions.inSampleSize);
 			// If necessary, scale down to the maximal acceptable size.
 			if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
 				bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
 				tempBitmap.recycle();
-				addMarker("scaling-read-from-resource-bitmap");
+				addMarker(Marker.SCALING_READ_FROM_RESOURCE_BITMAP);
 			} else {
 				bitmap = tempBitmap;
 			}
@@ -414,7 +423,7 @@ public class ImageRequest extends Request<Bitmap> {
 
 			bitmap = BitmapFactory.decodeResource(mResources, resourceId,
 					decodeOptions);
-			addMarker("read-full-size-image-from-resource");
+			addMarker(Marker.READ_FULL_SIZE_IMAGE_FROM_RESOURCE);
 		} else {
 			// If we have to resize this image, first get the natural bounds.
 			decodeOptions.inJustDecodeBounds = true;
@@ -433,12 +442,12 @@ public class ImageRequest extends Request<Bitmap> {
 
 			decodeOptions.inSampleSize = ImageUtils.findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
 			Bitmap tempBitmap = BitmapFactory.decodeResource(mResources, resourceId, decodeOptions);
-			addMarker(String.format("read-from-resource-scaled-times-%d", decodeOptions.inSampleSize));
+			addMarker(Marker.READ_FROM_RESOURCE_SCALED, null, decodeOptions.inSampleSize);
 			// If necessary, scale down to the maximal acceptable size.
 			if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
 				bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
 				tempBitmap.recycle();
-				addMarker("scaling-read-from-resource-bitmap");
+				addMarker(Marker.SCALING_READ_FROM_RESOURCE_BITMAP);
 			} else {
 				bitmap = tempBitmap;
 			}
@@ -3,37 +3,37 @@ package com.android.volley.request;
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
+import com.android.volley.RequestBody;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.Response.ProgressListener;
 import com.android.volley.error.AuthFailureError;
 import com.android.volley.misc.MultiPartParam;
+import com.android.volley.toolbox.multipart.FormPart;
+import com.android.volley.toolbox.multipart.MultipartEntity;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import static com.android.volley.misc.MultipartUtils.BINARY;
 import static com.android.volley.misc.MultipartUtils.BOUNDARY_PREFIX;
-import static com.android.volley.misc.MultipartUtils.COLON_SPACE;
 import static com.android.volley.misc.MultipartUtils.CONTENT_TYPE_MULTIPART;
 import static com.android.volley.misc.MultipartUtils.CONTENT_TYPE_OCTET_STREAM;
-import static com.android.volley.misc.MultipartUtils.CRLF;
-import static com.android.volley.misc.MultipartUtils.FILENAME;
-import static com.android.volley.misc.MultipartUtils.FORM_DATA;
-import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_DISPOSITION;
-import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TRANSFER_ENCODING;
-import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TYPE;
-import static com.android.volley.misc.MultipartUtils.SEMICOLON_SPACE;
-import static com.android.volley.misc.MultipartUtils.getContentLengthForMultipartRequest;
 
 /**
  * A request for making a Multi Part request
+ * <p>
+ * The body is streamed to the connection part by part, reading files as it goes, with its
+ * exact length computed up front. It is built once and written again by each retry.
  *
  * @param <T> Response expected
  */
@@ -47,7 +47,9 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 	private Map<String, MultiPartParam> mMultipartParams = null;
 	private Map<String, String> mFileUploads = null;
 	public static final int TIMEOUT_MS = 30000;
-	private boolean isFixedStreamingMode;
+	private boolean isFixedStreamingMode = true;
+	/** Built on first use and dropped whenever a part is added. */
+	private MultipartRequestBody mRequestBody;
 
 	/**
 	 * Creates a new request with the given method.
@@ -61,6 +63,7 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 
 		super(method, url, Priority.NORMAL, errorListener, new DefaultRetryPolicy(TIMEOUT_MS, DefaultRetryPolicy.DEFAULT_MAX_RETRIES,
 				                                                                         DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+		setLane(RequestQueue.LANE_BULK);
 		mListener = listener;
 		mMultipartParams = new HashMap<String, MultiPartParam>();
 		mFileUploads = new HashMap<String, String>();
@@ -81,7 +84,7 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 	 * Get the Content Length
 	 */
 	public int getContentLength() {
-		return getContentLengthForMultipartRequest(getBoundryPrefixed(), getMultipartParams(), getFilesToUpload());
+		return (int) getMultipartRequestBody().contentLength();
 	}
 
 	@Override
@@ -116,6 +119,10 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 		}
 	}
 
+	/**
+	 * Returns whether the body is sent with its Content-Length, the default, rather than
+	 * chunked.
+	 */
 	public boolean isFixedStreamingMode() {
 		return isFixedStreamingMode;
 	}
@@ -149,6 +156,7 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 	 */
 	public MultiPartRequest<T> addMultipartParam(String name, String contentType, String value) {
 		mMultipartParams.put(name, new MultiPartParam(contentType, value));
+		mRequestBody = null;
 		return this;
 	}
 
@@ -161,6 +169,7 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 	 */
 	public MultiPartRequest<T> addStringParam(String name, String value) {
 		mMultipartParams.put(name, new MultiPartParam("text/plain", value));
+		mRequestBody = null;
 		return this;
 	}
 
@@ -174,6 +183,7 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 	public MultiPartRequest<T> addFile(String name, String filePath) {
 
 		mFileUploads.put(name, filePath);
+		mRequestBody = null;
 		return this;
 	}
 
@@ -195,13 +205,14 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 		return mFileUploads;
 	}
 
+	/**
+	 * Builds the whole body in memory. The stacks stream {@link #getRequestBody()} instead.
+	 */
 	@Override
 	public byte[] getBody() throws AuthFailureError {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(bos);
-
 		try {
-			buildParts(dos);
+			getRequestBody().writeTo(bos);
 			return bos.toByteArray();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -210,75 +221,77 @@ public abstract class MultiPartRequest<T> extends Request<T> implements Progress
 		return super.getBody();
 	}
 
-	private void buildParts(DataOutputStream dos) throws IOException {
-		Map<String, MultiPartParam> multipartParams = getMultipartParams();
-		Map<String, String> filesToUpload = getFilesToUpload();
+	@Override
+	public RequestBody getRequestBody() throws AuthFailureError {
+		return getMultipartRequestBody();
+	}
 
-		for (Map.Entry<String, MultiPartParam> multipartParam : multipartParams.entrySet()) {
-			MultiPartParam param = multipartParam.getValue();
-			buildStringPart(dos, multipartParam.getKey(), param);
+	private MultipartRequestBody getMultipartRequestBody() {
+		if (mRequestBody == null) {
+			mRequestBody = new MultipartRequestBody(buildEntity(), getBodyContentType(),
+					getFilesToUpload().values());
 		}
+		return mRequestBody;
+	}
 
-		for (Map.Entry<String, String> fileToUpload : filesToUpload.entrySet()) {
-
-			File file = new File(fileToUpload.getValue());
-
-			if (!file.exists()) {
-				throw new IOException(String.format("File not found: %s", file.getAbsolutePath()));
-			} else if (file.isDirectory()) {
-				throw new IOException(String.format("File is a directory: %s", file.getAbsolutePath()));
+	private MultipartEntity buildEntity() {
+		// The entity adds the prefix to the boundary itself.
+		MultipartEntity entity = new MultipartEntity(
+				getBoundryPrefixed().substring(BOUNDARY_PREFIX.length()));
+		for (Map.Entry<String, MultiPartParam> multipartParam : getMultipartParams().entrySet()) {
+			MultiPartParam param = multipartParam.getValue();
+			byte[] value;
+			try {
+				value = param.value.getBytes(getProtocolCharset());
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
 			}
-			buildDataPart(dos, fileToUpload.getKey(), file);
+			entity.addPart(new FormPart(multipartParam.getKey(), param.contentType, value));
 		}
-
-		// close multipart form data after text and file data
-		dos.writeBytes(getBoundryPrefixed() + BOUNDARY_PREFIX);
-		dos.writeBytes(CRLF);
-	}
-
-	private void buildStringPart(DataOutputStream dataOutputStream, String key, MultiPartParam param) throws IOException {
-
-		dataOutputStream.writeBytes(getBoundryPrefixed());
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(String.format(HEADER_CONTENT_DISPOSITION + COLON_SPACE + FORM_DATA, key));
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(HEADER_CONTENT_TYPE + COLON_SPACE + param.contentType);
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(param.value);
-		dataOutputStream.writeBytes(CRLF);
+		for (Map.Entry<String, String> fileToUpload : getFilesToUpload().entrySet()) {
+			entity.addPart(new FormPart(fileToUpload.getKey(), new File(fileToUpload.getValue()),
+					CONTENT_TYPE_OCTET_STREAM));
+		}
+		return entity;
 	}
 
-	private void buildDataPart(DataOutputStream dataOutputStream, String key, File file) throws IOException {
-
-		dataOutputStream.writeBytes(getBoundryPrefixed());
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(String.format(HEADER_CONTENT_DISPOSITION + COLON_SPACE + FORM_DATA + SEMICOLON_SPACE + FILENAME, key, file.getName()));
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(HEADER_CONTENT_TYPE + COLON_SPACE + CONTENT_TYPE_OCTET_STREAM);
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(HEADER_CONTENT_TRANSFER_ENCODING + COLON_SPACE + BINARY);
-		dataOutputStream.writeBytes(CRLF);
-		dataOutputStream.writeBytes(CRLF);
-
-		FileInputStream fileInputStream = new FileInputStream(file);
-		int bytesAvailable = fileInputStream.available();
-
-		int maxBufferSize = 1024 * 1024;
-		int bufferSize = Math.min(bytesAvailable, maxBufferSize);
-		byte[] buffer = new byte[bufferSize];
-
-		int bytesRead = fileInputStream.read(buffer, 0, bufferSize);
+	/**
+	 * Streams a {@link MultipartEntity}; files are read as they are written.
+	 */
+	private static class MultipartRequestBody extends RequestBody {
+		private final MultipartEntity mEntity;
+		private final String mContentType;
+		private final List<File> mFiles = new ArrayList<File>();
+
+		MultipartRequestBody(MultipartEntity entity, String contentType, Collection<String> filePaths) {
+			mEntity = entity;
+			mContentType = contentType;
+			for (String path : filePaths) {
+				mFiles.add(new File(path));
+			}
+		}
 
-		while (bytesRead > 0) {
-			dataOutputStream.write(buffer, 0, bufferSize);
-			bytesAvailable = fileInputStream.available();
-			bufferSize = Math.min(bytesAvailable, maxBufferSize);
-			bytesRead = fileInputStream.read(buffer, 0, bufferSize);
+		@Override
+		public String contentType() {
+			return mContentType;
 		}
 
+		@Override
+		public long contentLength() {
+			return mEntity.getContentLength();
+		}
 
-		dataOutputStream.writeBytes(CRLF);
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			for (File file : mFiles) {
+				if (!file.exists()) {
+					throw new IOException(String.format("File not found: %s", file.getAbsolutePath()));
+				} else if (file.isDirectory()) {
+					throw new IOException(String.format("File is a directory: %s", file.getAbsolutePath()));
+				}
+			}
+			mEntity.writeTo(out);
+		}
 	}
 
 }
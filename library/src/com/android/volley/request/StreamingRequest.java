@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.request;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.error.ParseError;
+import com.android.volley.error.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A request whose successful response body is parsed straight from the connection's
+ * {@link InputStream} on the network thread, instead of being read into a byte array first.
+ * This halves peak memory for large bodies and lets parsing overlap the transfer.
+ * <p>
+ * {@link com.android.volley.toolbox.BasicNetwork} calls {@link #parseStream(int, Map, InputStream)}
+ * for 2xx responses and always closes the connection afterwards. An attempt that fails before
+ * the first byte has been read is retried according to the retry policy; once bytes have been
+ * consumed the request fails with a {@link com.android.volley.error.NetworkError}, as the
+ * stream can't be replayed, unless the request {@link #isResumable()}. Error responses, 304s
+ * and cache hits are parsed from their buffered body through the same method.
+ * <p>
+ * Streamed responses are only cached when {@link #setTeeToCache(boolean)} is set, in which case
+ * the body is copied into memory as it is read and the rest of it drained once parsing returns.
+ */
+public abstract class StreamingRequest<T> extends Request<T> {
+
+    private boolean mTeeToCache = false;
+
+    /** Result parsed from the stream, waiting for {@link #parseNetworkResponse(NetworkResponse)}. */
+    private T mStreamedResult;
+    private boolean mStreamed;
+
+    public StreamingRequest(int method, String url, ErrorListener listener) {
+        super(method, url, listener);
+        // The body isn't kept unless it is teed.
+        setShouldCache(false);
+    }
+
+    /**
+     * Sets whether the streamed body is also copied into memory so that the response can be
+     * cached. Also enables caching of this request when set.
+     */
+    public void setTeeToCache(boolean teeToCache) {
+        mTeeToCache = teeToCache;
+        if (teeToCache) {
+            setShouldCache(true);
+        }
+    }
+
+    /**
+     * Returns true if the body must be copied while it is streamed; see
+     * {@link #setTeeToCache(boolean)}.
+     */
+    public boolean shouldTeeToCache() {
+        return mTeeToCache && shouldCache();
+    }
+
+    /**
+     * Returns true if an attempt that fails after part of the body has been consumed may be
+     * retried, because this request picks up where the previous attempt left off.
+     */
+    public boolean isResumable() {
+        return false;
+    }
+
+    /**
+     * Parses the response body. Runs on the network thread for streamed responses, so it may
+     * block on the stream; the stream is closed by the caller.
+     *
+     * @param statusCode The HTTP status code
+     * @param headers The response headers
+     * @param body The response body
+     * @throws IOException if reading the body fails
+     * @throws VolleyError, usually a {@link ParseError}, if the body is invalid
+     */
+    protected abstract T parseStream(int statusCode, Map<String, String> headers,
+            InputStream body) throws IOException, VolleyError;
+
+    /**
+     * Called by the network with the body of a successful response. Not meant to be called
+     * by applications.
+     */
+    public final void onBodyStream(int statusCode, Map<String, String> headers, InputStream body)
+            throws IOException, VolleyError {
+        mStreamedResult = parseStream(statusCode, headers, body);
+        mStreamed = true;
+    }
+
+    @Override
+    protected final Response<T> parseNetworkResponse(NetworkResponse response) {
+        if (mStreamed) {
+            T result = mStreamedResult;
+            mStreamedResult = null;
+            mStreamed = false;
+            // A teed response carries the whole body, anything else only the headers.
+            Cache.Entry entry = shouldTeeToCache() ? HttpHeaderParser.parseCacheHeaders(
+                    response, getSoftExpire(), getExpire()) : null;
+            return Response.success(result, entry);
+        }
+        byte[] data = response.data != null ? response.data : new byte[0];
+        Map<String, String> headers = response.headers != null
+                ? response.headers : Collections.<String, String>emptyMap();
+        try {
+            T result = parseStream(response.statusCode, headers, new ByteArrayInputStream(data));
+            return Response.success(result,
+                    HttpHeaderParser.parseCacheHeaders(response, getSoftExpire(), getExpire()));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (VolleyError e) {
+            return Response.error(e);
+        }
+    }
+}
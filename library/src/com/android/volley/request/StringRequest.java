@@ -63,6 +63,12 @@ public class StringRequest extends Request<String> {
     	}
     }
 
+    @Override
+    protected boolean canShareResponseWith(Request<?> other) {
+        // Strings are immutable, so duplicates of the same type can reuse the parsed result.
+        return other.getClass() == getClass();
+    }
+
     @Override
     protected Response<String> parseNetworkResponse(NetworkResponse response) {
         String parsed;
@@ -18,20 +18,25 @@ package com.android.volley.toolbox;
 
 import android.os.SystemClock;
 
+import com.android.volley.AdaptiveRetryPolicy;
 import com.android.volley.Cache;
 import com.android.volley.Network;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
+import com.android.volley.Request.Marker;
 import com.android.volley.Response.ProgressListener;
 import com.android.volley.RetryPolicy;
 import com.android.volley.VolleyLog;
+import com.android.volley.VolleyMetrics;
 import com.android.volley.error.AuthFailureError;
+import com.android.volley.error.CanceledError;
 import com.android.volley.error.ClientError;
 import com.android.volley.error.NetworkError;
 import com.android.volley.error.NoConnectionError;
 import com.android.volley.error.ServerError;
 import com.android.volley.error.TimeoutError;
 import com.android.volley.error.VolleyError;
+import com.android.volley.request.StreamingRequest;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -41,8 +46,12 @@ import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.cookie.DateUtils;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.util.Collections;
@@ -61,10 +70,37 @@ public class BasicNetwork implements Network {
 
     private static int DEFAULT_POOL_SIZE = 4096;
 
+    /** Bodies larger than this are written to a file for requests that allow it. */
+    private static final int DEFAULT_SPILL_THRESHOLD_BYTES = 1024 * 1024;
+
+    /** Reserved up front for bodies of unknown length; more is reserved as they grow. */
+    private static final int UNKNOWN_LENGTH_RESERVATION_BYTES = 64 * 1024;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    /** Encodings {@link DecodingEntity} decodes. */
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
     protected final HttpStack mHttpStack;
 
     protected final ByteArrayPool mPool;
 
+    /** Budget for bodies buffered in memory, or null for no limit. */
+    private ResponseBudget mBudget = ResponseBudget.getDefault();
+
+    private int mSpillThresholdBytes = DEFAULT_SPILL_THRESHOLD_BYTES;
+
+    /** Directory for spilled bodies, or null for the default temporary directory. */
+    private File mSpillDirectory;
+
+    private volatile EventListener mEventListener;
+
+    /** Whether gzip and deflate encoded responses are asked for and decoded. */
+    private boolean mDecodingEnabled = true;
+
     /**
      * @param httpStack HTTP stack to be used
      */
@@ -83,17 +119,108 @@ public class BasicNetwork implements Network {
         mPool = pool;
     }
 
+    /**
+     * Sets the budget response bodies buffered in memory are reserved from, or null to buffer
+     * without any limit. Defaults to {@link ResponseBudget#getDefault()}. A body stays reserved
+     * until its request finishes, so the budget bounds the bodies being read, parsed and
+     * delivered at once. For requests that weren't added to a
+     * {@link com.android.volley.RequestQueue}, it is released when
+     * {@link #performRequest(Request)} returns.
+     */
+    public void setResponseBudget(ResponseBudget budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Sets the body size above which responses of requests that
+     * {@link Request#shouldSpillToDisk()} are written to a file.
+     */
+    public void setSpillThreshold(int thresholdBytes) {
+        mSpillThresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * Sets the directory spilled bodies are written to; on Android the default temporary
+     * directory is the application's cache directory.
+     */
+    public void setSpillDirectory(File directory) {
+        mSpillDirectory = directory;
+    }
+
+    /**
+     * Sets the listener notified of the phases of every request, or null for none. The HTTP
+     * stack reports the phases of each attempt if it is an {@link EventListener.Source}.
+     */
+    public void setEventListener(EventListener listener) {
+        mEventListener = listener;
+        if (mHttpStack instanceof EventListener.Source) {
+            ((EventListener.Source) mHttpStack).setEventListener(listener);
+        }
+    }
+
+    /**
+     * Sets whether requests advertise gzip and deflate with Accept-Encoding, with the responses
+     * decoded as they are read so that every request type parses the decoded body. Enabled by
+     * default. Requests setting Accept-Encoding themselves are left alone, as are requests for
+     * a byte range, since ranges and Content-Range totals would refer to the encoded body, and
+     * {@linkplain StreamingRequest#isResumable() resumable} requests such as downloads, which
+     * resume at an offset into the body and report progress against its Content-Length.
+     */
+    public void setDecodingEnabled(boolean enabled) {
+        mDecodingEnabled = enabled;
+    }
+
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        try {
+            EventListener listener = mEventListener;
+            if (listener == null) {
+                return performAttempts(request);
+            }
+            listener.callStart(request);
+            try {
+                NetworkResponse response = performAttempts(request);
+                listener.callEnd(request);
+                return response;
+            } catch (VolleyError e) {
+                listener.callFailed(request, e);
+                throw e;
+            }
+        } finally {
+            if (!request.hasRequestQueue()) {
+                // Nothing finishes requests performed outside a RequestQueue, so the body is
+                // the caller's from here on.
+                request.setResponseReservation(null);
+            }
+        }
+    }
+
+    /**
+     * Performs the request, retrying as allowed by its retry policy.
+     */
+    private NetworkResponse performAttempts(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
+            long attemptStart = SystemClock.elapsedRealtime();
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
+            File responseFile = null;
             Map<String, String> responseHeaders = Collections.emptyMap();
+            // The body of a previous attempt is no longer needed, and must not hold memory
+            // this attempt may be waiting for.
+            request.setResponseReservation(null);
             try {
+                // Don't start another attempt for a request nobody is waiting for.
+                if (request.isCanceled()) {
+                    throw new CanceledError();
+                }
                 // Gather headers.
                 Map<String, String> headers = new HashMap<String, String>();
                 addCacheHeaders(headers, request.getCacheEntry());
+                boolean decode = shouldDecode(request);
+                if (decode) {
+                    headers.put(HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING);
+                }
                 httpResponse = mHttpStack.performRequest(request, headers);
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
@@ -101,6 +228,7 @@ public class BasicNetwork implements Network {
                 responseHeaders = convertHeaders(httpResponse.getAllHeaders());
                 // Handle cache validation.
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                    reportAttemptLatency(request, attemptStart);
                     Cache.Entry entry = request.getCacheEntry();
                     if (entry == null) {
                         return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, null,
@@ -118,13 +246,29 @@ public class BasicNetwork implements Network {
                 }
 
                 // Some responses such as 204s do not have content.  We must check.
-                if (httpResponse.getEntity() != null) {
-                    responseContents = entityToBytes(request, httpResponse.getEntity());
+                HttpEntity entity = httpResponse.getEntity();
+                String encoding = responseHeaders.get(HEADER_CONTENT_ENCODING);
+                if (entity != null && decode && DecodingEntity.canDecode(encoding)) {
+                    entity = new DecodingEntity(entity, encoding);
+                    // The headers describe the decoded body from here on.
+                    responseHeaders.remove(HEADER_CONTENT_ENCODING);
+                    responseHeaders.remove(HEADER_CONTENT_LENGTH);
+                }
+                if (entity != null && request instanceof StreamingRequest
+                        && statusCode >= 200 && statusCode <= 299) {
+                    responseContents = streamEntity((StreamingRequest<?>) request, statusCode,
+                            responseHeaders, entity);
+                } else if (entity != null && shouldSpill(request, statusCode, entity)) {
+                    responseFile = entityToFile(request, entity);
+                    responseContents = new byte[0];
+                } else if (entity != null) {
+                    responseContents = entityToBytes(request, entity);
                 } else {
                     // Add 0 byte response as a way of honestly representing a
                     // no-content request.
                     responseContents = new byte[0];
                 }
+                reportAttemptLatency(request, attemptStart);
                 // if the request is slow, log it.
                 long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
                 logSlowRequests(requestLifetime, request, responseContents, statusLine);
@@ -132,12 +276,16 @@ public class BasicNetwork implements Network {
                 if (statusCode < 200 || statusCode > 299) {
                     throw new IOException();
                 }
+                if (responseFile != null) {
+                    return new NetworkResponse(statusCode, responseFile, responseHeaders,
+                            SystemClock.elapsedRealtime() - requestStart);
+                }
                 return new NetworkResponse(statusCode, responseContents, responseHeaders, false,
                         SystemClock.elapsedRealtime() - requestStart);
             } catch (SocketTimeoutException e) {
-                attemptRetryOnException("socket", request, new TimeoutError());
+                attemptRetryOnException("socket", request, newTimeoutError(attemptStart));
             } catch (ConnectTimeoutException e) {
-                attemptRetryOnException("connection", request, new TimeoutError());
+                attemptRetryOnException("connection", request, newTimeoutError(attemptStart));
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + request.getUrl(), e);
             } catch (IOException e) {
@@ -192,6 +340,27 @@ public class BasicNetwork implements Network {
         }
     }
 
+    /**
+     * Returns a timeout error carrying how long the attempt ran, for retry policies to learn
+     * from.
+     */
+    private static TimeoutError newTimeoutError(long attemptStart) {
+        TimeoutError error = new TimeoutError();
+        error.setNetworkTimeMs(SystemClock.elapsedRealtime() - attemptStart);
+        return error;
+    }
+
+    /**
+     * Feeds the duration of a completed attempt back to latency-aware retry policies.
+     */
+    private static void reportAttemptLatency(Request<?> request, long attemptStart) {
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+        if (retryPolicy instanceof AdaptiveRetryPolicy) {
+            ((AdaptiveRetryPolicy) retryPolicy).onResponse(
+                    SystemClock.elapsedRealtime() - attemptStart);
+        }
+    }
+
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
      * request's retry policy, a timeout exception is thrown.
@@ -205,11 +374,11 @@ public class BasicNetwork implements Network {
         try {
             retryPolicy.retry(exception);
         } catch (VolleyError e) {
-            request.addMarker(
-                    String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
+            request.addMarker(Marker.TIMEOUT_GIVEUP, logPrefix, oldTimeout);
             throw e;
         }
-        request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+        request.addMarker(Marker.RETRY, logPrefix, oldTimeout);
+        VolleyMetrics.getDefault().count(request, VolleyMetrics.Counter.RETRY);
     }
 
     private void addCacheHeaders(Map<String, String> headers, Cache.Entry entry) {
@@ -233,12 +402,140 @@ public class BasicNetwork implements Network {
         VolleyLog.v("HTTP ERROR(%s) %d ms to fetch %s", what, (now - start), url);
     }
 
+    /**
+     * Returns true if the body should be written to a file: the request allows it, the response
+     * is successful and the body is larger than the threshold or of unknown length.
+     */
+    private boolean shouldSpill(Request<?> request, int statusCode, HttpEntity entity) {
+        if (!request.shouldSpillToDisk() || statusCode < 200 || statusCode > 299) {
+            return false;
+        }
+        long length = entity.getContentLength();
+        return length < 0 || length > mSpillThresholdBytes;
+    }
+
+    /**
+     * Passes the contents of HttpEntity to a streaming request as they arrive.
+     *
+     * @return the body if the request tees it to the cache, an empty array otherwise
+     */
+    private byte[] streamEntity(StreamingRequest<?> request, int statusCode,
+            Map<String, String> headers, HttpEntity entity) throws IOException, VolleyError {
+        PoolingByteArrayOutputStream tee = null;
+        BodyInputStream body = null;
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            if (request.shouldTeeToCache()) {
+                tee = new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
+            }
+            body = new BodyInputStream(in, request, tee, entity.getContentLength());
+            request.onBodyStream(statusCode, headers, body);
+            if (tee != null) {
+                // Cache the whole body even if the parser stopped early.
+                body.drain(mPool);
+            }
+            request.addMarker(Marker.NETWORK_BODY_STREAMED);
+            onBodyRead(request, entity, body.getCount());
+            return tee != null ? tee.toByteArray() : new byte[0];
+        } catch (IOException e) {
+            if (request.isCanceled()) {
+                throw new CanceledError();
+            }
+            if (body != null && body.getCount() > 0 && !request.isResumable()) {
+                // The parser consumed part of a body that can't be replayed; don't retry.
+                throw new NetworkError(e);
+            }
+            throw e;
+        } finally {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+            if (tee != null) {
+                tee.close();
+            }
+        }
+    }
+
+    /** Streams the contents of HttpEntity into a temporary file. */
+    private File entityToFile(Request<?> request, HttpEntity entity)
+            throws IOException, VolleyError {
+        File file = File.createTempFile("volley", ".body", mSpillDirectory);
+        OutputStream out = null;
+        byte[] buffer = null;
+        boolean complete = false;
+        long totalSize = entity.getContentLength();
+        try {
+            ProgressListener progressListener = null;
+            if (request instanceof ProgressListener) {
+                progressListener = (ProgressListener) request;
+            }
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            out = new FileOutputStream(file);
+            buffer = mPool.getBuf(8192);
+            int count;
+            long transferredBytes = 0;
+            while ((count = in.read(buffer)) != -1) {
+                if (request.isCanceled()) {
+                    throw new CanceledError();
+                }
+                out.write(buffer, 0, count);
+                transferredBytes += count;
+                if (null != progressListener) {
+                    progressListener.onProgress(transferredBytes, totalSize);
+                }
+            }
+            out.close();
+            out = null;
+            complete = true;
+            onBodyRead(request, entity, transferredBytes);
+            request.addMarker(Marker.NETWORK_BODY_SPILLED);
+            return file;
+        } finally {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+            mPool.returnBuf(buffer);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore; the file is deleted below.
+                }
+            }
+            if (!complete) {
+                file.delete();
+            }
+        }
+    }
+
     /** Reads the contents of HttpEntity into a byte[]. */
-    private byte[] entityToBytes(Request<?> request, HttpEntity entity) throws IOException, ServerError {
+    private byte[] entityToBytes(Request<?> request, HttpEntity entity)
+            throws IOException, VolleyError {
+        long length = entity.getContentLength();
+        long reserved = 0;
+        if (mBudget != null) {
+            try {
+                reserved = mBudget.reserve(length >= 0 ? length : UNKNOWN_LENGTH_RESERVATION_BYTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VolleyError("Interrupted while waiting for response memory", e);
+            }
+        }
         PoolingByteArrayOutputStream bytes =
                 new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
         byte[] buffer = null;
         long totalSize = (int) entity.getContentLength();
+        boolean held = false;
         try {
 			ProgressListener progressListener = null;
 			if (request instanceof ProgressListener) {
@@ -252,13 +549,31 @@ public class BasicNetwork implements Network {
             int count;
             int transferredBytes = 0;
             while ((count = in.read(buffer)) != -1) {
+                if (request.isCanceled()) {
+                    // Stop the transfer; the connection is released below.
+                    throw new CanceledError();
+                }
                 bytes.write(buffer, 0, count);
                 transferredBytes += count;
+                if (mBudget != null && transferredBytes > reserved) {
+                    // Longer than announced; account for it without blocking mid-transfer.
+                    long more = Math.max(transferredBytes - reserved,
+                            UNKNOWN_LENGTH_RESERVATION_BYTES);
+                    mBudget.reserveNow(more);
+                    reserved += more;
+                }
                 if (null != progressListener) {
                     progressListener.onProgress(transferredBytes, totalSize);
                 }
             }
-            return bytes.toByteArray();
+            onBodyRead(request, entity, transferredBytes);
+            byte[] data = bytes.toByteArray();
+            if (mBudget != null) {
+                // The body stays in memory through parsing and delivery.
+                request.setResponseReservation(new ResponseBudget.Reservation(mBudget, reserved));
+                held = true;
+            }
+            return data;
         } finally {
             try {
                 // Close the InputStream and release the resources by "consuming the content".
@@ -270,6 +585,134 @@ public class BasicNetwork implements Network {
             }
             mPool.returnBuf(buffer);
             bytes.close();
+            if (mBudget != null && !held) {
+                mBudget.release(reserved);
+            }
+        }
+    }
+
+    /**
+     * Reports a body that has been read in full. Decoded bodies are reported with the number
+     * of bytes received and the number of bytes they decoded to.
+     */
+    private void onBodyRead(Request<?> request, HttpEntity entity, long bodyBytes) {
+        EventListener listener = mEventListener;
+        if (entity instanceof DecodingEntity) {
+            DecodingEntity decoding = (DecodingEntity) entity;
+            long encodedBytes = decoding.getEncodedCount();
+            request.addMarker(Marker.NETWORK_BODY_DECODED, decoding.getEncoding(), encodedBytes);
+            if (listener != null) {
+                listener.responseBodyDecoded(request, decoding.getEncoding(), encodedBytes,
+                        bodyBytes);
+                listener.responseBodyEnd(request, encodedBytes);
+            }
+        } else if (listener != null) {
+            listener.responseBodyEnd(request, bodyBytes);
+        }
+    }
+
+    /**
+     * Returns true if the response to this request may be encoded; see
+     * {@link #setDecodingEnabled(boolean)}.
+     */
+    private boolean shouldDecode(Request<?> request) throws AuthFailureError {
+        if (!mDecodingEnabled || (request instanceof StreamingRequest
+                && ((StreamingRequest<?>) request).isResumable())) {
+            return false;
+        }
+        for (String name : request.getHeaders().keySet()) {
+            if (HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name)
+                    || HEADER_RANGE.equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Body of a streamed response: counts the bytes read, copies them to the tee if any,
+     * reports progress and stops reading once the request is canceled.
+     */
+    private static class BodyInputStream extends FilterInputStream {
+        private final Request<?> mRequest;
+        private final OutputStream mTee;
+        private final ProgressListener mProgressListener;
+        private final long mLength;
+        private long mCount;
+
+        BodyInputStream(InputStream in, Request<?> request, OutputStream tee, long length) {
+            super(in);
+            mRequest = request;
+            mTee = tee;
+            mProgressListener = request instanceof ProgressListener
+                    ? (ProgressListener) request : null;
+            mLength = length;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRequest.isCanceled()) {
+                throw new IOException("Request canceled");
+            }
+            int read = super.read();
+            if (read != -1) {
+                if (mTee != null) {
+                    mTee.write(read);
+                }
+                onRead(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRequest.isCanceled()) {
+                throw new IOException("Request canceled");
+            }
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                if (mTee != null) {
+                    mTee.write(buffer, offset, read);
+                }
+                onRead(read);
+            }
+            return read;
+        }
+
+        private void onRead(int count) {
+            mCount += count;
+            if (mProgressListener != null) {
+                mProgressListener.onProgress(mCount, mLength);
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Read instead of skipping so that the tee stays complete.
+            byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /** Reads the rest of the stream. */
+        void drain(ByteArrayPool pool) throws IOException {
+            byte[] buffer = pool.getBuf(1024);
+            try {
+                while (read(buffer, 0, buffer.length) != -1) {
+                    // Keep reading.
+                }
+            } finally {
+                pool.returnBuf(buffer);
+            }
         }
     }
 
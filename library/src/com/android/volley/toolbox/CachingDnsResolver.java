@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.VolleyLog;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DnsResolver} keeping the addresses of hosts in memory, so that only the first
+ * connection to a host waits for DNS.
+ * <p>
+ * Addresses are fresh for the TTL. For the stale time after that they are still returned, while
+ * they are refreshed in the background; a failed refresh keeps them. Past both the lookup
+ * blocks. The platform resolver doesn't expose record TTLs, so the TTL is set on the resolver;
+ * keep it short enough for the hosts' failover.
+ * <p>
+ * Addresses are ordered as for Happy Eyeballs (RFC 8305), alternating between IPv6 and IPv4
+ * starting with the family the delegate preferred, so that a host unreachable over one family
+ * fails over to the other on the next address rather than after all of the first family.
+ * <p>
+ * Concurrent lookups of a host that isn't cached, including background refreshes and preloads,
+ * share a single lookup by the delegate.
+ * <p>
+ * Use {@link #preload(Collection)} to resolve hosts at startup.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    public static final long DEFAULT_STALE_MS = 10 * 60 * 1000;
+
+    private static final int MAX_ENTRIES = 64;
+
+    private final DnsResolver mDelegate;
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Least recently used first. Guarded by itself. */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /** Lookups by the delegate under way, by host. Guarded by {@link #mEntries}. */
+    private final Map<String, Lookup> mLookups = new HashMap<String, Lookup>();
+
+    private volatile long mTtlMs = DEFAULT_TTL_MS;
+    private volatile long mStaleMs = DEFAULT_STALE_MS;
+
+    public CachingDnsResolver() {
+        this(DnsResolver.SYSTEM);
+    }
+
+    /**
+     * @param delegate Resolver to look hosts up with
+     */
+    public CachingDnsResolver(DnsResolver delegate) {
+        mDelegate = delegate;
+        mExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "VolleyDns");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how long addresses are used without being refreshed.
+     */
+    public void setTtlMs(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Sets how long after their TTL addresses are still used while being refreshed.
+     */
+    public void setStaleMs(long staleMs) {
+        mStaleMs = staleMs;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        String host = hostname.toLowerCase(Locale.US);
+        Entry entry;
+        boolean refresh = false;
+        synchronized (mEntries) {
+            entry = mEntries.get(host);
+            if (entry != null) {
+                long age = SystemClock.elapsedRealtime() - entry.resolvedAt;
+                if (age > mTtlMs + mStaleMs) {
+                    entry = null;
+                } else if (age > mTtlMs && !entry.refreshing) {
+                    entry.refreshing = true;
+                    refresh = true;
+                }
+            }
+        }
+        if (entry == null) {
+            return resolve(host);
+        }
+        if (refresh) {
+            resolveInBackground(host);
+        }
+        return entry.addresses;
+    }
+
+    /**
+     * Resolves the hosts in the background, unless their addresses are fresh.
+     */
+    public void preload(String... hostnames) {
+        preload(Arrays.asList(hostnames));
+    }
+
+    /**
+     * Resolves the hosts in the background, unless their addresses are fresh.
+     */
+    public void preload(Collection<String> hostnames) {
+        long now = SystemClock.elapsedRealtime();
+        for (String hostname : hostnames) {
+            String host = hostname.toLowerCase(Locale.US);
+            synchronized (mEntries) {
+                Entry entry = mEntries.get(host);
+                if (entry != null && (entry.refreshing || now - entry.resolvedAt <= mTtlMs)) {
+                    continue;
+                }
+                if (entry != null) {
+                    entry.refreshing = true;
+                }
+            }
+            resolveInBackground(host);
+        }
+    }
+
+    /**
+     * Forgets the addresses of the host, for example when none of them could be connected to.
+     */
+    public void invalidate(String hostname) {
+        synchronized (mEntries) {
+            mEntries.remove(hostname.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * Forgets all addresses, for example when the device switches networks.
+     */
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Looks the host up with the delegate, or waits for the lookup already under way.
+     */
+    private List<InetAddress> resolve(String host) throws UnknownHostException {
+        Lookup lookup;
+        boolean owner = false;
+        synchronized (mEntries) {
+            lookup = mLookups.get(host);
+            if (lookup == null) {
+                lookup = new Lookup();
+                mLookups.put(host, lookup);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            return lookup.await(host);
+        }
+        List<InetAddress> addresses = null;
+        UnknownHostException error = null;
+        try {
+            addresses = interleave(mDelegate.lookup(host));
+            if (addresses.isEmpty()) {
+                throw new UnknownHostException("No addresses for " + host);
+            }
+        } catch (UnknownHostException e) {
+            error = e;
+        } finally {
+            synchronized (mEntries) {
+                mLookups.remove(host);
+                if (addresses != null && error == null) {
+                    mEntries.put(host, new Entry(addresses, SystemClock.elapsedRealtime()));
+                } else {
+                    Entry entry = mEntries.get(host);
+                    if (entry != null) {
+                        // Stale addresses beat none; the next lookup retries.
+                        entry.refreshing = false;
+                    }
+                }
+            }
+            lookup.finish(error == null ? addresses : null, error);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return addresses;
+    }
+
+    private void resolveInBackground(final String host) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resolve(host);
+                } catch (UnknownHostException e) {
+                    VolleyLog.d("Unable to resolve %s: %s", host, e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the addresses alternating between families, starting with the first one's.
+     */
+    private static List<InetAddress> interleave(List<InetAddress> addresses) {
+        List<InetAddress> first = new ArrayList<InetAddress>(addresses.size());
+        List<InetAddress> second = new ArrayList<InetAddress>(addresses.size());
+        boolean firstIsV6 = !addresses.isEmpty() && addresses.get(0) instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.size());
+        for (int i = 0; i < first.size() || i < second.size(); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return Collections.unmodifiableList(ordered);
+    }
+
+    /**
+     * A lookup by the delegate, which concurrent lookups of the same host wait for.
+     */
+    private static class Lookup {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private List<InetAddress> mAddresses;
+        private UnknownHostException mError;
+
+        void finish(List<InetAddress> addresses, UnknownHostException error) {
+            mAddresses = addresses;
+            mError = error;
+            mDone.countDown();
+        }
+
+        List<InetAddress> await(String host) throws UnknownHostException {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException("Interrupted while resolving " + host);
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            if (mAddresses == null) {
+                throw new UnknownHostException("Unable to resolve " + host);
+            }
+            return mAddresses;
+        }
+    }
+
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+        /** Whether a background refresh is under way. Guarded by the cache. */
+        boolean refreshing;
+
+        Entry(List<InetAddress> addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.VolleyLog;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens connections to origins ahead of the requests that will need them, so that DNS, TCP
+ * and TLS setup are off the critical path of the first request to each host.
+ * <p>
+ * Get the prewarmer of a stack with {@link HurlStack#getPrewarmer()} or
+ * {@link OkHttpStack#getPrewarmer()} and pass it the origins to warm, for example at startup
+ * or before navigating to a screen. Each origin is warmed on a background thread of its own
+ * with a HEAD request to its root, whose connection is left in the stack's keep-alive pool;
+ * servers see that request. At most {@link #setMaxWarmOrigins(int)} origins are kept warm at a
+ * time.
+ * <p>
+ * The stack tells the prewarmer which connection each request got, so {@link #getStats()}
+ * shows how many warmed connections were reused by a request, and how many were evicted from
+ * the pool unused.
+ */
+public class ConnectionPrewarmer {
+
+    /** Number of origins kept warm at a time. */
+    public static final int DEFAULT_MAX_WARM_ORIGINS = 4;
+
+    /** How long the stacks' pools keep idle connections by default. */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    public static final int DEFAULT_TIMEOUT_MS = 10000;
+
+    /**
+     * Implemented by {@link HttpStack}s whose connections can be warmed.
+     */
+    public interface Stack {
+        /**
+         * Opens a connection to the origin and leaves it in the stack's pool. Blocks until the
+         * connection is ready.
+         *
+         * @param origin The root URL of the origin
+         * @param timeoutMs Connect and read timeout
+         */
+        void preconnect(URL origin, int timeoutMs) throws IOException;
+    }
+
+    /** Marks origins being warmed in {@link #mWarmOrigins}. */
+    private static final long PENDING = -1;
+
+    private final Stack mStack;
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Time each origin was warmed at, or {@link #PENDING}. Guarded by this. */
+    private final Map<String, Long> mWarmOrigins = new HashMap<String, Long>();
+    private volatile boolean mHasWarmOrigins;
+
+    private int mMaxWarmOrigins = DEFAULT_MAX_WARM_ORIGINS;
+    private long mKeepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+    private volatile int mTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    private final AtomicLong mWarmed = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mUsed = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+
+    public ConnectionPrewarmer(Stack stack) {
+        mStack = stack;
+        // One thread per origin, so that a slow origin doesn't hold back the others.
+        mExecutor = new ThreadPoolExecutor(DEFAULT_MAX_WARM_ORIGINS, DEFAULT_MAX_WARM_ORIGINS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "VolleyPrewarm");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the number of origins kept warm at a time; origins beyond it are skipped.
+     */
+    public synchronized void setMaxWarmOrigins(int maxWarmOrigins) {
+        mMaxWarmOrigins = maxWarmOrigins;
+        int threads = Math.max(1, maxWarmOrigins);
+        // The core size may never exceed the maximum.
+        if (threads > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(threads);
+            mExecutor.setCorePoolSize(threads);
+        } else {
+            mExecutor.setCorePoolSize(threads);
+            mExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Sets how long a warmed connection is expected to stay in the pool. Should match the
+     * keep-alive time of the stack's pool.
+     */
+    public synchronized void setKeepAliveMs(long keepAliveMs) {
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    public void setTimeoutMs(int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Warms connections to the given origins, such as <code>https://api.example.com</code>, in
+     * the background. Origins already warm are skipped.
+     */
+    public void prewarm(String... origins) {
+        prewarm(Arrays.asList(origins));
+    }
+
+    /**
+     * Warms connections to the given origins in the background.
+     */
+    public void prewarm(Collection<String> origins) {
+        for (String origin : origins) {
+            final URL url;
+            try {
+                url = toOrigin(new URL(origin));
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Bad origin " + origin, e);
+            }
+            final String key = url.toString();
+            synchronized (this) {
+                expire(SystemClock.elapsedRealtime());
+                if (mWarmOrigins.containsKey(key)) {
+                    continue;
+                }
+                if (mWarmOrigins.size() >= mMaxWarmOrigins) {
+                    mSkipped.incrementAndGet();
+                    continue;
+                }
+                mWarmOrigins.put(key, PENDING);
+                mHasWarmOrigins = true;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warm(url, key);
+                }
+            });
+        }
+    }
+
+    private void warm(URL url, String key) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            mStack.preconnect(url, mTimeoutMs);
+            long now = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                // Unless a request has claimed the origin in the meantime.
+                if (mWarmOrigins.containsKey(key)) {
+                    mWarmOrigins.put(key, now);
+                }
+            }
+            mWarmed.incrementAndGet();
+            VolleyLog.v("Warmed %s in %d ms", key, now - start);
+        } catch (IOException e) {
+            synchronized (this) {
+                mWarmOrigins.remove(key);
+            }
+            mFailed.incrementAndGet();
+            VolleyLog.d("Unable to warm %s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * Called by the stack once a request has a connection.
+     *
+     * @param reused Whether the connection came from the pool, or null if the stack can't
+     *        tell, in which case it is assumed to have if it was warmed within the keep-alive
+     *        time
+     */
+    public void onConnection(String scheme, String host, int port, Boolean reused) {
+        if (!mHasWarmOrigins) {
+            return;
+        }
+        String key = toKey(scheme, host, port);
+        synchronized (this) {
+            Long warmedAt = mWarmOrigins.get(key);
+            if (warmedAt == null || warmedAt == PENDING) {
+                // A request racing its warm-up pays for its own connection.
+                return;
+            }
+            mWarmOrigins.remove(key);
+            mHasWarmOrigins = !mWarmOrigins.isEmpty();
+            if (reused != null ? reused
+                    : SystemClock.elapsedRealtime() - warmedAt <= mKeepAliveMs) {
+                mUsed.incrementAndGet();
+            } else {
+                mExpired.incrementAndGet();
+            }
+        }
+    }
+
+    /** Forgets origins whose connection has likely been evicted. Must hold the lock. */
+    private void expire(long now) {
+        Iterator<Long> iterator = mWarmOrigins.values().iterator();
+        while (iterator.hasNext()) {
+            long warmedAt = iterator.next();
+            if (warmedAt != PENDING && now - warmedAt > mKeepAliveMs) {
+                iterator.remove();
+                mExpired.incrementAndGet();
+            }
+        }
+        mHasWarmOrigins = !mWarmOrigins.isEmpty();
+    }
+
+    /**
+     * Returns what has been warmed so far and how much of it was used.
+     */
+    public Stats getStats() {
+        return new Stats(mWarmed.get(), mFailed.get(), mUsed.get(), mExpired.get(),
+                mSkipped.get());
+    }
+
+    private static URL toOrigin(URL url) throws MalformedURLException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return new URL(toKey(url.getProtocol(), url.getHost(), port));
+    }
+
+    private static String toKey(String scheme, String host, int port) {
+        return scheme.toLowerCase(Locale.US) + "://" + host.toLowerCase(Locale.US) + ":" + port
+                + "/";
+    }
+
+    /**
+     * Counts of the origins warmed by a prewarmer.
+     */
+    public static class Stats {
+        /** Origins whose connection was opened. */
+        public final long warmed;
+        public final long failed;
+        /** Warmed connections reused by a request. */
+        public final long used;
+        /** Warmed connections evicted before a request could reuse them. */
+        public final long expired;
+        /** Origins not warmed as the limit of warm origins was reached. */
+        public final long skipped;
+
+        Stats(long warmed, long failed, long used, long expired, long skipped) {
+            this.warmed = warmed;
+            this.failed = failed;
+            this.used = used;
+            this.expired = expired;
+            this.skipped = skipped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d warmed (%d used, %d expired), %d failed, "
+                    + "%d skipped", warmed, used, expired, failed, skipped);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a gzip or deflate encoded body as it is read, so that the rest of the network sees
+ * the body as if it had been sent unencoded. The decoded length isn't known up front.
+ */
+class DecodingEntity extends HttpEntityWrapper {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final String mEncoding;
+    private CountingInputStream mEncoded;
+    private InputStream mDecoded;
+
+    /**
+     * Returns true if bodies with the given Content-Encoding can be decoded.
+     */
+    static boolean canDecode(String encoding) {
+        return "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)
+                || "deflate".equalsIgnoreCase(encoding);
+    }
+
+    DecodingEntity(HttpEntity entity, String encoding) {
+        super(entity);
+        mEncoding = encoding.toLowerCase(Locale.US);
+    }
+
+    /** Returns the Content-Encoding the body is decoded from. */
+    String getEncoding() {
+        return mEncoding;
+    }
+
+    /** Returns the number of encoded bytes read so far. */
+    long getEncodedCount() {
+        return mEncoded != null ? mEncoded.mCount : 0;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (mDecoded != null) {
+            return mDecoded;
+        }
+        InputStream content = wrappedEntity.getContent();
+        if (content == null) {
+            return null;
+        }
+        mEncoded = new CountingInputStream(content);
+        PushbackInputStream in = new PushbackInputStream(mEncoded, 2);
+        byte[] head = new byte[2];
+        int read = 0;
+        int count;
+        while (read < head.length && (count = in.read(head, read, head.length - read)) != -1) {
+            read += count;
+        }
+        if (read == 0) {
+            // Empty bodies are sometimes labeled as encoded.
+            mDecoded = new ByteArrayInputStream(new byte[0]);
+            return mDecoded;
+        }
+        in.unread(head, 0, read);
+        if (!mEncoding.equals("deflate")) {
+            mDecoded = new GZIPInputStream(in, BUFFER_SIZE);
+        } else {
+            // Deflate is meant to be zlib wrapped, but some servers send raw deflate data.
+            int header = (head[0] & 0xff) << 8 | (head[1] & 0xff);
+            boolean zlib = read == 2 && (head[0] & 0x0f) == 8 && header % 31 == 0;
+            final Inflater inflater = new Inflater(!zlib);
+            mDecoded = new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    // Only inflaters the stream creates itself are released by it.
+                    inflater.end();
+                    super.close();
+                }
+            };
+        }
+        return mDecoded;
+    }
+
+    @Override
+    public void consumeContent() throws IOException {
+        if (mDecoded != null) {
+            // Releases the native inflater.
+            mDecoded.close();
+        }
+        super.consumeContent();
+    }
+
+    /** Counts the bytes read from the connection. */
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                mCount++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
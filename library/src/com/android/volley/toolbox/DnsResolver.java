@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves host names for an {@link HttpStack}. Connections are attempted in the order of the
+ * returned addresses.
+ *
+ * @see CachingDnsResolver
+ * @see OkHttpStack#OkHttpStack(okhttp3.OkHttpClient, HurlStack.UrlRewriter, DnsResolver)
+ */
+public interface DnsResolver {
+
+    /** Resolves with the platform's resolver. */
+    DnsResolver SYSTEM = new DnsResolver() {
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            return Arrays.asList(InetAddress.getAllByName(hostname));
+        }
+    };
+
+    /**
+     * Returns the addresses of the host, never empty. May block.
+     *
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException;
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Request;
+import com.android.volley.error.VolleyError;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Listener for the phases of the HTTP calls made by a {@link BasicNetwork} and its
+ * {@link HttpStack}, for telling apart time spent in DNS, connecting, TLS, waiting for the
+ * first byte and transferring the body.
+ * <p>
+ * Set it with {@link BasicNetwork#setEventListener(EventListener)}. The call events are fired by
+ * the network once per request, the others by the stack for every attempt. Stacks fire what they
+ * can observe: {@link HurlStack} and {@link OkHttpStack} report every phase,
+ * {@link HttpClientStack} only the response headers. Callbacks run on the dispatcher thread
+ * performing the request, except {@link #secureConnectEnd(Request, SSLSession)} which may run
+ * on a thread of the TLS implementation, so they must be fast and thread-safe. All methods do
+ * nothing by default.
+ * <p>
+ * Byte counts of headers are estimates of their size on the wire; body byte counts are what
+ * was read from or written to the stack's streams.
+ */
+public abstract class EventListener {
+
+    /**
+     * Implemented by {@link HttpStack}s that can report events.
+     */
+    public interface Source {
+        /** Sets the listener to report to, or null to stop reporting. */
+        void setEventListener(EventListener listener);
+    }
+
+    /** Called when the network starts performing a request, before any attempt. */
+    public void callStart(Request<?> request) {
+    }
+
+    /** Called before the host name of an attempt is resolved. */
+    public void dnsStart(Request<?> request, String host) {
+    }
+
+    /** Called once the host name of an attempt has been resolved. */
+    public void dnsEnd(Request<?> request, String host, List<InetAddress> addresses) {
+    }
+
+    /** Called before a connection for an attempt is acquired. */
+    public void connectStart(Request<?> request, String host, int port) {
+    }
+
+    /** Called when the TLS handshake of a new connection starts. */
+    public void secureConnectStart(Request<?> request) {
+    }
+
+    /** Called when the TLS handshake of a new connection has completed. */
+    public void secureConnectEnd(Request<?> request, SSLSession session) {
+    }
+
+    /**
+     * Called once a connection for an attempt has been acquired.
+     *
+     * @param reused Whether a pooled connection was reused, or null if the stack can't tell
+     */
+    public void connectEnd(Request<?> request, Boolean reused) {
+    }
+
+    /** Called once the request headers of an attempt have been committed. */
+    public void requestHeadersEnd(Request<?> request, long headerBytes) {
+    }
+
+    /** Called once the request body of an attempt has been written. */
+    public void requestBodyEnd(Request<?> request, long bodyBytes) {
+    }
+
+    /** Called once the response headers of an attempt have been received. */
+    public void responseHeadersEnd(Request<?> request, int statusCode, long headerBytes) {
+    }
+
+    /**
+     * Called once the response body of an attempt has been read. For encoded bodies,
+     * <code>bodyBytes</code> is the number of bytes received.
+     */
+    public void responseBodyEnd(Request<?> request, long bodyBytes) {
+    }
+
+    /**
+     * Called before {@link #responseBodyEnd(Request, long)} for a body that was decoded while
+     * it was read.
+     *
+     * @param encoding The content encoding, such as <code>gzip</code>
+     * @param encodedBytes The number of bytes received
+     * @param decodedBytes The number of bytes they decoded to
+     */
+    public void responseBodyDecoded(Request<?> request, String encoding, long encodedBytes,
+            long decodedBytes) {
+    }
+
+    /** Called when the network returns a response for the request. */
+    public void callEnd(Request<?> request) {
+    }
+
+    /** Called when the network gives up on the request. */
+    public void callFailed(Request<?> request, VolleyError error) {
+    }
+}
@@ -16,16 +16,16 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.AdaptiveRetryPolicy;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
+import com.android.volley.RequestBody;
+import com.android.volley.RequestBodyCodec;
 import com.android.volley.Response.ProgressListener;
+import com.android.volley.RetryPolicy;
 import com.android.volley.error.AuthFailureError;
-import com.android.volley.misc.MultiPartParam;
-import com.android.volley.request.MultiPartRequest;
-import com.android.volley.toolbox.multipart.FilePart;
-import com.android.volley.toolbox.multipart.MultipartEntity;
-import com.android.volley.toolbox.multipart.StringPart;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
@@ -38,31 +38,47 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import static com.android.volley.misc.MultipartUtils.CONTENT_TYPE_MULTIPART;
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_ENCODING;
 import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TYPE;
 
 /**
  * An HttpStack that performs request over an {@link HttpClient}.
  */
-public class HttpClientStack implements HttpStack {
+public class HttpClientStack implements HttpStack, EventListener.Source {
+	/** Connect timeout used unless the retry policy provides one. */
+	private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
 	protected final HttpClient mClient;
 
+	private volatile EventListener mEventListener;
+
 	public HttpClientStack(HttpClient client) {
 		mClient = client;
 	}
 
+	/**
+	 * Sets the listener to report to. HttpClient hides how it resolves and connects, so only
+	 * the response headers are reported.
+	 */
+	@Override
+	public void setEventListener(EventListener listener) {
+		mEventListener = listener;
+	}
+
 	private static void addHeaders(HttpUriRequest httpRequest, Map<String, String> headers) {
 		for (Map.Entry<String, String> header : headers.entrySet()) {
 			httpRequest.setHeader(header.getKey(), header.getValue());
@@ -86,11 +102,25 @@ public class HttpClientStack implements HttpStack {
 		onPrepareRequest(httpRequest);
 		HttpParams httpParams = httpRequest.getParams();
 		int timeoutMs = request.getTimeoutMs();
-		// TODO: Reevaluate this connection timeout based on more wide-scale
-		// data collection and possibly different for wifi vs. 3G.
-		HttpConnectionParams.setConnectionTimeout(httpParams, 5000);
+		// Latency-aware policies learn the connect timeout per host; everything else keeps
+		// the historical fixed value.
+		RetryPolicy retryPolicy = request.getRetryPolicy();
+		int connectTimeoutMs = retryPolicy instanceof AdaptiveRetryPolicy
+				? ((AdaptiveRetryPolicy) retryPolicy).getConnectTimeout()
+				: DEFAULT_CONNECT_TIMEOUT_MS;
+		HttpConnectionParams.setConnectionTimeout(httpParams, connectTimeoutMs);
 		HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
-		return mClient.execute(httpRequest);
+		HttpResponse response = mClient.execute(httpRequest);
+		EventListener listener = mEventListener;
+		if (listener != null) {
+			// Estimated from the status line and header fields.
+			long headerBytes = response.getStatusLine().toString().length() + 4;
+			for (Header header : response.getAllHeaders()) {
+				headerBytes += header.getName().length() + header.getValue().length() + 4;
+			}
+			listener.responseHeadersEnd(request, response.getStatusLine().getStatusCode(), headerBytes);
+		}
+		return response;
 	}
 
 	/**
@@ -158,60 +188,62 @@ public class HttpClientStack implements HttpStack {
 	}
 
 	private static void setEntityIfNonEmptyBody(HttpEntityEnclosingRequestBase httpRequest, Request<?> request) throws IOException, AuthFailureError {
-
-		byte[] body = request.getBody();
+		RequestBody body = RequestBodyCodec.apply(request.getRequestBody(), request.getBodyCodec());
 		if (body != null) {
 			ProgressListener progressListener = null;
 			if (request instanceof ProgressListener) {
 				progressListener = (ProgressListener) request;
 			}
-
-			if (null != progressListener) {
-				MultipartEntity multipartEntity = new MultipartEntity();
-				final String charset = ((MultiPartRequest<?>) request).getProtocolCharset();
-				httpRequest.addHeader(HEADER_CONTENT_TYPE, String.format(CONTENT_TYPE_MULTIPART, charset, multipartEntity.getBoundary()));
-
-				final Map<String, MultiPartParam> multipartParams = ((MultiPartRequest<?>) request).getMultipartParams();
-				final Map<String, String> filesToUpload = ((MultiPartRequest<?>) request).getFilesToUpload();
-
-				for (Map.Entry<String, MultiPartParam> multipartParam : multipartParams.entrySet()) {
-					multipartEntity.addPart(new StringPart(multipartParam.getKey(), multipartParam.getValue().value));
-				}
-
-				for (Map.Entry<String, String> fileToUpload : filesToUpload.entrySet()) {
-					File file = new File(fileToUpload.getValue());
-
-					if (!file.exists()) {
-						throw new IOException(String.format("File not found: %s", file.getAbsolutePath()));
-					}
-
-					if (file.isDirectory()) {
-						throw new IOException(String.format("File is a directory: %s", file.getAbsolutePath()));
-					}
-
-					FilePart filePart = new FilePart(fileToUpload.getKey(), file, null, null);
-					filePart.setProgressListener(progressListener);
-					multipartEntity.addPart(filePart);
-				}
-				httpRequest.setEntity(multipartEntity);
-
-/*				ByteArrayEntity entity = new ByteArrayEntity(body);
-				ProgressHttpEntity progressHttpEntity = new ProgressHttpEntity(entity, progressListener);
-
-				if (((MultiPartRequest<?>) request).isFixedStreamingMode()) {
-					int contentLength = ((MultiPartRequest<?>) request).getContentLength();
-					progressHttpEntity.setContentLength(contentLength);
-				} else {
-					entity.setChunked(false);
-				}
-				entity.setContentType(request.getBodyContentType());
-				httpRequest.addHeader(HEADER_CONTENT_TYPE, request.getBodyContentType());
-				httpRequest.setEntity(progressHttpEntity);*/
-			} else {
-				HttpEntity entity = new ByteArrayEntity(body);
-				httpRequest.addHeader(HEADER_CONTENT_TYPE, request.getBodyContentType());
-				httpRequest.setEntity(entity);
+			httpRequest.addHeader(HEADER_CONTENT_TYPE, body.contentType());
+			if (body.contentEncoding() != null) {
+				httpRequest.addHeader(HEADER_CONTENT_ENCODING, body.contentEncoding());
 			}
+			httpRequest.setEntity(new RequestBodyEntity(body, progressListener));
+		}
+	}
+
+	/**
+	 * Writes a {@link RequestBody} to HttpClient's connection.
+	 */
+	private static class RequestBodyEntity extends AbstractHttpEntity {
+		private final RequestBody mBody;
+		private final ProgressListener mProgressListener;
+		private final long mContentLength;
+
+		RequestBodyEntity(RequestBody body, ProgressListener progressListener) throws IOException {
+			mBody = body;
+			mProgressListener = progressListener;
+			mContentLength = body.contentLength();
+			setContentType(body.contentType());
+			setChunked(mContentLength < 0);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return mContentLength;
+		}
+
+		/**
+		 * Returns <code>null</code> since it's not designed to be used for server responses.
+		 */
+		@Override
+		public InputStream getContent() {
+			return null;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			RequestBodyCodec.write(mBody, out, mProgressListener);
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
 		}
 	}
 
@@ -19,11 +19,15 @@ package com.android.volley.toolbox;
 
 import android.text.TextUtils;
 
+import com.android.volley.AdaptiveRetryPolicy;
+import com.android.volley.LatencyEstimator;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
+import com.android.volley.RequestBody;
+import com.android.volley.RequestBodyCodec;
 import com.android.volley.Response.ProgressListener;
+import com.android.volley.RetryPolicy;
 import com.android.volley.error.AuthFailureError;
-import com.android.volley.misc.CountingOutputStream;
 import com.android.volley.request.MultiPartRequest;
 
 import org.apache.http.Header;
@@ -40,16 +44,25 @@ import org.apache.http.message.BasicStatusLine;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_ENCODING;
 import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TYPE;
 import static com.android.volley.misc.MultipartUtils.HEADER_USER_AGENT;
 
@@ -57,11 +70,25 @@ import static com.android.volley.misc.MultipartUtils.HEADER_USER_AGENT;
 /**
  * An {@link HttpStack} based on {@link HttpURLConnection}.
  */
-public class HurlStack implements HttpStack {
+public class HurlStack implements HttpStack, EventListener.Source, ConnectionPrewarmer.Stack {
+
+	/** The call being connected on the current thread, seen by {@link ListeningSocketFactory}. */
+	private static final ThreadLocal<Call> sConnectingCall = new ThreadLocal<Call>();
+
+	/** In-memory bodies up to this size are buffered by the connection rather than streamed. */
+	private static final long MAX_BUFFERED_BODY_BYTES = 64 * 1024;
 
 	private UrlRewriter mUrlRewriter;
 	private final SSLSocketFactory mSslSocketFactory;
 	private String mUserAgent;
+	private volatile EventListener mEventListener;
+	/**
+	 * Factory noting new TLS connections, and reporting their handshakes while a listener is
+	 * set. All HTTPS connections use it, as HttpURLConnection only pools connections created by
+	 * the same factory.
+	 */
+	private volatile SSLSocketFactory mListeningSocketFactory;
+	private volatile ConnectionPrewarmer mPrewarmer;
 
 	/**
 	 * An interface for transforming URLs before use.
@@ -107,6 +134,65 @@ public class HurlStack implements HttpStack {
 		mUserAgent = userAgent;
 	}
 
+	@Override
+	public void setEventListener(EventListener listener) {
+		mEventListener = listener;
+	}
+
+	/**
+	 * Returns the factory for HTTPS connections, which wraps the custom one, if any.
+	 */
+	private SSLSocketFactory getListeningSocketFactory() {
+		if (mListeningSocketFactory == null) {
+			synchronized (this) {
+				if (mListeningSocketFactory == null) {
+					mListeningSocketFactory = new ListeningSocketFactory(mSslSocketFactory != null
+							? mSslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory());
+				}
+			}
+		}
+		return mListeningSocketFactory;
+	}
+
+	/**
+	 * Returns the prewarmer opening connections in this stack's pool ahead of requests.
+	 */
+	public synchronized ConnectionPrewarmer getPrewarmer() {
+		if (mPrewarmer == null) {
+			mPrewarmer = new ConnectionPrewarmer(this);
+		}
+		return mPrewarmer;
+	}
+
+	@Override
+	public void preconnect(URL origin, int timeoutMs) throws IOException {
+		HttpURLConnection connection = createConnection(origin);
+		connection.setConnectTimeout(timeoutMs);
+		connection.setReadTimeout(timeoutMs);
+		connection.setUseCaches(false);
+		connection.setInstanceFollowRedirects(false);
+		if ("https".equals(origin.getProtocol())) {
+			// Connections are only pooled with those made by the same factory.
+			((HttpsURLConnection) connection).setSSLSocketFactory(getListeningSocketFactory());
+		}
+		if (!TextUtils.isEmpty(mUserAgent)) {
+			connection.setRequestProperty(HEADER_USER_AGENT, mUserAgent);
+		}
+		connection.setRequestMethod("HEAD");
+		connection.getResponseCode();
+		InputStream in;
+		try {
+			in = connection.getInputStream();
+		} catch (IOException e) {
+			in = connection.getErrorStream();
+		}
+		// Closing the exhausted stream, rather than disconnecting, returns the connection to
+		// the pool.
+		if (in != null) {
+			in.close();
+		}
+	}
+
 	@Override
 	public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws AuthFailureError, IOException {
 		String url = request.getUrl();
@@ -121,6 +207,11 @@ public class HurlStack implements HttpStack {
 			url = rewritten;
 		}
 		URL parsedUrl = new URL(url);
+		EventListener listener = mEventListener;
+		Call call = new Call(listener, request, parsedUrl);
+		if (listener != null) {
+			call.resolve();
+		}
 		HttpURLConnection connection = openConnection(parsedUrl, request);
 
 		if (!TextUtils.isEmpty(mUserAgent)) {
@@ -130,7 +221,17 @@ public class HurlStack implements HttpStack {
 		for (Entry<String, String> header : map.entrySet()) {
 			connection.addRequestProperty(header.getKey(), header.getValue());
 		}
-		setConnectionParametersForRequest(connection, request);
+		setConnectionParametersForRequest(connection, request, call);
+		// Requests without a body haven't connected yet.
+		call.connect(connection);
+		ConnectionPrewarmer prewarmer = mPrewarmer;
+		if (prewarmer != null) {
+			// Plain connections leave no trace of whether they came from the pool.
+			prewarmer.onConnection(parsedUrl.getProtocol(), parsedUrl.getHost(),
+					parsedUrl.getPort() != -1 ? parsedUrl.getPort() : parsedUrl.getDefaultPort(),
+					connection instanceof HttpsURLConnection
+							? Boolean.valueOf(!call.newConnection) : null);
+		}
 
 		// Initialize HttpResponse with data from the HttpURLConnection.
 		ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
@@ -142,6 +243,10 @@ public class HurlStack implements HttpStack {
 			// connection.
 			throw new IOException("Could not retrieve response code from HttpUrlConnection.");
 		}
+		if (listener != null) {
+			listener.responseHeadersEnd(request, responseCode,
+					estimateHeaderBytes(connection.getHeaderFields()));
+		}
 		StatusLine responseStatus = new BasicStatusLine(protocolVersion, connection.getResponseCode(), connection.getResponseMessage());
 		BasicHttpResponse response = new BasicHttpResponse(responseStatus);
 		if (hasResponseBody(request.getMethod(), responseStatus.getStatusCode())) {
@@ -163,7 +268,7 @@ public class HurlStack implements HttpStack {
 	 * @param responseCode response status code
 	 * @return whether the response has a body
 	 */
-	private static boolean hasResponseBody(int requestMethod, int responseCode) {
+	/* package */static boolean hasResponseBody(int requestMethod, int responseCode) {
 		return requestMethod != Request.Method.HEAD
 				&& !(HttpStatus.SC_CONTINUE <= responseCode && responseCode < HttpStatus.SC_OK)
 				&& responseCode != HttpStatus.SC_NO_CONTENT
@@ -215,21 +320,53 @@ public class HurlStack implements HttpStack {
 		HttpURLConnection connection = createConnection(url);
 
 		int timeoutMs = request.getTimeoutMs();
-		connection.setConnectTimeout(timeoutMs);
+		connection.setConnectTimeout(getConnectTimeoutMs(request));
 		connection.setReadTimeout(timeoutMs);
 		connection.setUseCaches(false);
 		connection.setDoInput(true);
 
 		// use caller-provided custom SslSocketFactory, if any, for HTTPS
-		if ("https".equals(url.getProtocol()) && mSslSocketFactory != null) {
-			((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+		if ("https".equals(url.getProtocol())) {
+			// Wraps the custom factory, if any, to tell new connections from pooled ones.
+			((HttpsURLConnection) connection).setSSLSocketFactory(getListeningSocketFactory());
 		}
 
 		return connection;
 	}
 
-	@SuppressWarnings("deprecation")
+	/**
+	 * Records how long connecting to the host took with the estimator of the request's retry
+	 * policy, or the default one. Timed out connects record the time waited as a lower bound.
+	 */
+	/* package */static void recordConnect(Request<?> request, String host, long timeMs, boolean timedOut) {
+		RetryPolicy retryPolicy = request.getRetryPolicy();
+		LatencyEstimator estimator = retryPolicy instanceof AdaptiveRetryPolicy
+				? ((AdaptiveRetryPolicy) retryPolicy).getEstimator() : LatencyEstimator.getDefault();
+		if (timedOut) {
+			estimator.recordConnectTimeout(host, timeMs);
+		} else {
+			estimator.recordConnect(host, timeMs);
+		}
+	}
+
+	/**
+	 * Returns the connect timeout for the request, which only differs from the read timeout
+	 * when the retry policy tracks it separately.
+	 */
+	/* package */static int getConnectTimeoutMs(Request<?> request) {
+		RetryPolicy retryPolicy = request.getRetryPolicy();
+		if (retryPolicy instanceof AdaptiveRetryPolicy) {
+			return ((AdaptiveRetryPolicy) retryPolicy).getConnectTimeout();
+		}
+		return request.getTimeoutMs();
+	}
+
 	/* package */static void setConnectionParametersForRequest(HttpURLConnection connection, Request<?> request) throws IOException, AuthFailureError {
+		setConnectionParametersForRequest(connection, request, null);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void setConnectionParametersForRequest(HttpURLConnection connection, Request<?> request, Call call) throws IOException, AuthFailureError {
 		switch (request.getMethod()) {
 		case Method.DEPRECATED_GET_OR_POST:
 			// This is the deprecated way that needs to be handled for backwards
@@ -247,9 +384,15 @@ public class HurlStack implements HttpStack {
 				connection.setDoOutput(true);
 				connection.setRequestMethod("POST");
 				connection.addRequestProperty(HEADER_CONTENT_TYPE, request.getPostBodyContentType());
+				if (call != null) {
+					call.connect(connection);
+				}
 				DataOutputStream out = new DataOutputStream(connection.getOutputStream());
 				out.write(postBody);
 				out.close();
+				if (call != null) {
+					call.requestBodyEnd(postBody.length);
+				}
 			}
 			break;
 		case Method.GET:
@@ -260,15 +403,15 @@ public class HurlStack implements HttpStack {
 			break;
 		case Method.DELETE:
 			connection.setRequestMethod("DELETE");
-			addBodyIfExists(connection, request);
+			addBodyIfExists(connection, request, call);
 			break;
 		case Method.POST:
 			connection.setRequestMethod("POST");
-			addBodyIfExists(connection, request);
+			addBodyIfExists(connection, request, call);
 			break;
 		case Method.PUT:
 			connection.setRequestMethod("PUT");
-			addBodyIfExists(connection, request);
+			addBodyIfExists(connection, request, call);
 			break;
 		case Method.HEAD:
 			connection.setRequestMethod("HEAD");
@@ -286,44 +429,214 @@ public class HurlStack implements HttpStack {
             } else {
                 connection.setRequestMethod("PATCH");
             }
-            addBodyIfExists(connection, request);
+            addBodyIfExists(connection, request, call);
 			break;
 		default:
 			throw new IllegalStateException("Unknown method type.");
 		}
 	}
 
-	private static void addBodyIfExists(HttpURLConnection connection, Request<?> request) throws IOException, AuthFailureError {
-		byte[] body = request.getBody();
-		if (body != null) {
-			connection.setDoOutput(true);
-			connection.setRequestProperty(HEADER_CONTENT_TYPE, request.getBodyContentType());
-
-			if(request instanceof MultiPartRequest){
-				if (((MultiPartRequest<?>) request).isFixedStreamingMode()) {
-					int contentLength = ((MultiPartRequest<?>) request).getContentLength();
-					connection.setFixedLengthStreamingMode(contentLength);
-				} else {
-					connection.setChunkedStreamingMode(0);
+	private static void addBodyIfExists(HttpURLConnection connection, Request<?> request, Call call) throws IOException, AuthFailureError {
+		RequestBody requestBody = request.getRequestBody();
+		RequestBody body = RequestBodyCodec.apply(requestBody, request.getBodyCodec());
+		if (body == null) {
+			return;
+		}
+		connection.setDoOutput(true);
+		connection.setRequestProperty(HEADER_CONTENT_TYPE, body.contentType());
+		if (body.contentEncoding() != null) {
+			connection.setRequestProperty(HEADER_CONTENT_ENCODING, body.contentEncoding());
+		}
+
+		// Small in-memory bodies are left to the connection to buffer, as it can then resend them
+		// itself when a pooled connection turns out to be stale. Others are streamed rather than
+		// buffered a second time.
+		if (!requestBody.isInMemory() || requestBody.contentLength() > MAX_BUFFERED_BODY_BYTES) {
+			long contentLength = body.contentLength();
+			boolean chunked = request instanceof MultiPartRequest
+					&& !((MultiPartRequest<?>) request).isFixedStreamingMode();
+			if (contentLength >= 0 && !chunked) {
+				connection.setFixedLengthStreamingMode(contentLength);
+			} else {
+				connection.setChunkedStreamingMode(0);
+			}
+		}
+
+		if (call != null) {
+			call.connect(connection);
+		}
+		OutputStream out = connection.getOutputStream();
+		long written;
+		try {
+			written = RequestBodyCodec.write(body, out, request instanceof ProgressListener
+					? (ProgressListener) request : null);
+		} finally {
+			out.close();
+		}
+		if (call != null) {
+			call.requestBodyEnd(written);
+		}
+	}
+
+	/**
+	 * Estimates the size of headers on the wire, the status or request line included.
+	 */
+	private static long estimateHeaderBytes(Map<String, List<String>> headers) {
+		// Blank line ending the headers.
+		long bytes = 2;
+		for (Entry<String, List<String>> header : headers.entrySet()) {
+			for (String value : header.getValue()) {
+				if (header.getKey() != null) {
+					bytes += header.getKey().length() + 2;
 				}
+				bytes += (value != null ? value.length() : 0) + 2;
 			}
+		}
+		return bytes;
+	}
 
-			ProgressListener progressListener = null;
-			if (request instanceof ProgressListener) {
-				progressListener = (ProgressListener) request;
+	/**
+	 * Times the connect of one attempt, and reports its phases to the {@link EventListener}, if
+	 * any.
+	 */
+	private static class Call {
+		/** May be null. */
+		final EventListener listener;
+		final Request<?> request;
+		final URL url;
+		/** Set by {@link ListeningSocketFactory} when a new TLS connection is made. */
+		boolean newConnection;
+		private boolean mConnected;
+
+		Call(EventListener listener, Request<?> request, URL url) {
+			this.listener = listener;
+			this.request = request;
+			this.url = url;
+		}
+
+		/**
+		 * Resolves the host ahead of the connection, which then finds it in the system's
+		 * resolver cache, so that DNS time is reported separately.
+		 */
+		void resolve() throws IOException {
+			String host = url.getHost();
+			listener.dnsStart(request, host);
+			InetAddress[] addresses = InetAddress.getAllByName(host);
+			listener.dnsEnd(request, host, Arrays.asList(addresses));
+		}
+
+		/**
+		 * Connects explicitly, once the method and body parameters have been set, so that
+		 * connecting is timed apart from sending the request and waiting for the response.
+		 */
+		void connect(HttpURLConnection connection) throws IOException {
+			if (mConnected) {
+				return;
+			}
+			mConnected = true;
+			if (listener != null) {
+				int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+				listener.connectStart(request, url.getHost(), port);
+			}
+			long start = System.nanoTime();
+			sConnectingCall.set(this);
+			try {
+				connection.connect();
+			} catch (SocketTimeoutException e) {
+				recordConnect(request, url.getHost(), (System.nanoTime() - start) / 1000000, true);
+				throw e;
+			} finally {
+				sConnectingCall.remove();
 			}
+			if (newConnection) {
+				// Only connections known to be new say anything about connect latency.
+				recordConnect(request, url.getHost(), (System.nanoTime() - start) / 1000000, false);
+			}
+			if (listener != null) {
+				long headerBytes = connection.getRequestMethod().length() + url.getFile().length()
+						+ 12 + estimateHeaderBytes(connection.getRequestProperties());
+				boolean secure = connection instanceof HttpsURLConnection;
+				// Plain connections leave no trace of whether they came from the pool.
+				listener.connectEnd(request, secure ? Boolean.valueOf(!newConnection) : null);
+				listener.requestHeadersEnd(request, headerBytes);
+			}
+		}
 
-			if (progressListener != null) {
-                CountingOutputStream cos = new CountingOutputStream(connection.getOutputStream(), body.length,
-                                                                           progressListener);
-                cos.write(body);
-                cos.close();
+		void requestBodyEnd(long bytes) {
+			if (listener != null) {
+				listener.requestBodyEnd(request, bytes);
 			}
-			else{
-                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
-                out.write(body);
-                out.close();
+		}
+	}
+
+	/**
+	 * Delegating factory that marks the connections made for a {@link Call} as new, and reports
+	 * their TLS handshakes.
+	 */
+	private static class ListeningSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory mDelegate;
+
+		ListeningSocketFactory(SSLSocketFactory delegate) {
+			mDelegate = delegate;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return mDelegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return mDelegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return onSocket(mDelegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return onSocket(mDelegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return onSocket(mDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return onSocket(mDelegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return onSocket(mDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return onSocket(mDelegate.createSocket(address, port, localAddress, localPort));
+		}
+
+		private static Socket onSocket(Socket socket) {
+			final Call call = sConnectingCall.get();
+			if (call == null || !(socket instanceof SSLSocket)) {
+				return socket;
+			}
+			call.newConnection = true;
+			if (call.listener == null) {
+				return socket;
 			}
+			call.listener.secureConnectStart(call.request);
+			((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					call.listener.secureConnectEnd(call.request, event.getSession());
+				}
+			});
+			return socket;
 		}
 	}
 }
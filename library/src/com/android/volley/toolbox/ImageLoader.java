@@ -26,6 +26,7 @@ import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 
 import com.android.volley.Cache;
+import com.android.volley.DeliveryWatchdog;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
@@ -471,6 +472,21 @@ public class ImageLoader {
             }
         }
 
+        /**
+         * Changes the priority of the in-flight request backing this container, e.g. when its
+         * view scrolls into sight. Has no effect once the image has been delivered.
+         */
+        public void setPriority(Request.Priority priority) {
+            if (mListener == null) {
+                return;
+            }
+
+            BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
+            if (request != null) {
+                request.mRequest.setPriority(priority);
+            }
+        }
+
         /**
          * Returns the bitmap associated with the request URL if it has been loaded, null otherwise.
          */
@@ -564,7 +580,9 @@ public class ImageLoader {
             mRunnable = new Runnable() {
                 @Override
                 public void run() {
+                    DeliveryWatchdog watchdog = DeliveryWatchdog.getDefault();
                     for (BatchedImageRequest bir : mBatchedResponses.values()) {
+                        long deliveryStart = watchdog.begin();
                         for (ImageContainer container : bir.mContainers) {
                             // If one of the callers in the batched request canceled the request
                             // after the response was received but before it was delivered,
@@ -579,6 +597,7 @@ public class ImageLoader {
                                 container.mListener.onErrorResponse(bir.getError());
                             }
                         }
+                        watchdog.end(bir.mRequest, deliveryStart);
                     }
                     mBatchedResponses.clear();
                     mRunnable = null;
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.RequestBody;
+import com.android.volley.RequestBodyCodec;
+import com.android.volley.Response.ProgressListener;
+import com.android.volley.error.AuthFailureError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.Dns;
+import okhttp3.Handshake;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okio.BufferedSink;
+
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_ENCODING;
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TYPE;
+
+/**
+ * An {@link HttpStack} based on OkHttp 3.11 or later, which speaks HTTP/2 where the server does.
+ * <p>
+ * All requests share the client's connection pool, and requests to an HTTP/2 host are
+ * multiplexed over a single TLS connection instead of each taking a connection of its own,
+ * which saves handshakes and lets concurrent requests share the connection's congestion
+ * window. OkHttp is not a dependency of Volley; applications using this stack must add it.
+ * <p>
+ * Per request timeouts are applied with {@link OkHttpClient#newBuilder()}, which shares the
+ * pool. Responses are not decoded by OkHttp, as {@link BasicNetwork} asks for and decodes
+ * compressed bodies itself. The stack installs its own OkHttp event listener, which replaces
+ * the client's: it times new connections for the requests' retry policies, and reports to the
+ * {@link EventListener}, if one is set.
+ */
+public class OkHttpStack implements HttpStack, EventListener.Source, ConnectionPrewarmer.Stack {
+
+	/** Stands in for a missing listener, as connects are timed either way. */
+	private static final EventListener NO_LISTENER = new EventListener() {
+	};
+
+	private final OkHttpClient mClient;
+	private final HurlStack.UrlRewriter mUrlRewriter;
+	private volatile EventListener mEventListener;
+	private volatile ConnectionPrewarmer mPrewarmer;
+
+	public OkHttpStack() {
+		this(new OkHttpClient());
+	}
+
+	/**
+	 * @param client Client whose connection pool, dispatcher and settings requests use
+	 */
+	public OkHttpStack(OkHttpClient client) {
+		this(client, null);
+	}
+
+	/**
+	 * @param client Client whose connection pool, dispatcher and settings requests use
+	 * @param urlRewriter Rewriter to use for request URLs
+	 */
+	public OkHttpStack(OkHttpClient client, HurlStack.UrlRewriter urlRewriter) {
+		this(client, urlRewriter, null);
+	}
+
+	/**
+	 * @param client Client whose connection pool, dispatcher and settings requests use
+	 * @param urlRewriter Rewriter to use for request URLs
+	 * @param resolver Resolver to look hosts up with instead of the client's, or null
+	 */
+	public OkHttpStack(OkHttpClient client, HurlStack.UrlRewriter urlRewriter, DnsResolver resolver) {
+		if (client == null) {
+			throw new NullPointerException("Client must not be null.");
+		}
+		OkHttpClient.Builder builder = client.newBuilder()
+				.eventListenerFactory(new okhttp3.EventListener.Factory() {
+					@Override
+					public okhttp3.EventListener create(Call call) {
+						Request<?> request = call.request().tag(Request.class);
+						if (request == null) {
+							return okhttp3.EventListener.NONE;
+						}
+						EventListener listener = mEventListener;
+						return new EventBridge(listener != null ? listener : NO_LISTENER, request,
+								mPrewarmer);
+					}
+				});
+		if (resolver != null) {
+			builder.dns(new DnsAdapter(resolver));
+		}
+		mClient = builder.build();
+		mUrlRewriter = urlRewriter;
+	}
+
+	/**
+	 * Returns the client requests are made with.
+	 */
+	public OkHttpClient getClient() {
+		return mClient;
+	}
+
+	@Override
+	public void setEventListener(EventListener listener) {
+		mEventListener = listener;
+	}
+
+	/**
+	 * Returns the prewarmer opening connections in the client's pool ahead of requests. A
+	 * single warm connection serves all requests to an HTTP/2 origin.
+	 */
+	public synchronized ConnectionPrewarmer getPrewarmer() {
+		if (mPrewarmer == null) {
+			mPrewarmer = new ConnectionPrewarmer(this);
+		}
+		return mPrewarmer;
+	}
+
+	@Override
+	public void preconnect(URL origin, int timeoutMs) throws IOException {
+		OkHttpClient client = mClient.newBuilder()
+				.connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.followRedirects(false)
+				.build();
+		okhttp3.Request request = new okhttp3.Request.Builder().url(origin).head().build();
+		// Closing the response returns its connection to the pool.
+		client.newCall(request).execute().close();
+	}
+
+	@Override
+	public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+		String url = request.getUrl();
+		if (mUrlRewriter != null) {
+			String rewritten = mUrlRewriter.rewriteUrl(url);
+			if (rewritten == null) {
+				throw new IOException("URL blocked by rewriter: " + url);
+			}
+			url = rewritten;
+		}
+
+		okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(url)
+				.tag(Request.class, request);
+		HashMap<String, String> map = new HashMap<String, String>();
+		map.putAll(request.getHeaders());
+		map.putAll(additionalHeaders);
+		for (Map.Entry<String, String> header : map.entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+		setConnectionParametersForRequest(builder, request);
+
+		okhttp3.Request okRequest = builder.build();
+
+		okhttp3.Response okResponse = clientFor(request).newCall(okRequest).execute();
+
+		StatusLine responseStatus = new BasicStatusLine(toProtocolVersion(okResponse.protocol()),
+				okResponse.code(), okResponse.message());
+		BasicHttpResponse response = new BasicHttpResponse(responseStatus);
+		okhttp3.ResponseBody body = okResponse.body();
+		if (body != null && HurlStack.hasResponseBody(request.getMethod(), okResponse.code())) {
+			BasicHttpEntity entity = new BasicHttpEntity();
+			entity.setContent(body.byteStream());
+			entity.setContentLength(body.contentLength());
+			entity.setContentEncoding(okResponse.header(HEADER_CONTENT_ENCODING));
+			entity.setContentType(okResponse.header(HEADER_CONTENT_TYPE));
+			response.setEntity(entity);
+		} else {
+			okResponse.close();
+		}
+		Headers headers = okResponse.headers();
+		for (int i = 0, size = headers.size(); i < size; i++) {
+			response.addHeader(new BasicHeader(headers.name(i), headers.value(i)));
+		}
+		return response;
+	}
+
+	/**
+	 * Returns the client to perform the request with: the stack's own one, or one sharing its
+	 * pool with the request's timeouts.
+	 */
+	private OkHttpClient clientFor(Request<?> request) {
+		int timeoutMs = request.getTimeoutMs();
+		int connectTimeoutMs = HurlStack.getConnectTimeoutMs(request);
+		if (mClient.readTimeoutMillis() == timeoutMs
+				&& mClient.writeTimeoutMillis() == timeoutMs
+				&& mClient.connectTimeoutMillis() == connectTimeoutMs) {
+			return mClient;
+		}
+		return mClient.newBuilder()
+				.connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+				.readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	private static void setConnectionParametersForRequest(okhttp3.Request.Builder builder, Request<?> request) throws IOException, AuthFailureError {
+		switch (request.getMethod()) {
+		case Method.DEPRECATED_GET_OR_POST:
+			// This is the deprecated way that needs to be handled for backwards
+			// compatibility. If the request's post body is null, then the
+			// assumption is that the request is GET. Otherwise, it is assumed
+			// that the request is a POST.
+			byte[] postBody = request.getPostBody();
+			if (postBody != null) {
+				builder.post(toOkBody(request,
+						RequestBody.create(request.getPostBodyContentType(), postBody)));
+			} else {
+				builder.get();
+			}
+			break;
+		case Method.GET:
+			builder.get();
+			break;
+		case Method.DELETE:
+			builder.delete();
+			break;
+		case Method.POST:
+			builder.post(createBody(builder, request));
+			break;
+		case Method.PUT:
+			builder.put(createBody(builder, request));
+			break;
+		case Method.HEAD:
+			builder.head();
+			break;
+		case Method.OPTIONS:
+			builder.method("OPTIONS", null);
+			break;
+		case Method.TRACE:
+			builder.method("TRACE", null);
+			break;
+		case Method.PATCH:
+			if (request.shouldOverridePatch()) {
+				builder.header("X-HTTP-Method-Override", "PATCH");
+				builder.post(createBody(builder, request));
+			} else {
+				builder.patch(createBody(builder, request));
+			}
+			break;
+		default:
+			throw new IllegalStateException("Unknown method type.");
+		}
+	}
+
+	/**
+	 * Returns the encoded body of the request, or an empty one as OkHttp requires a body for
+	 * POST, PUT and PATCH.
+	 */
+	private static okhttp3.RequestBody createBody(okhttp3.Request.Builder builder, Request<?> request) throws IOException, AuthFailureError {
+		RequestBody body = RequestBodyCodec.apply(request.getRequestBody(), request.getBodyCodec());
+		if (body == null) {
+			body = RequestBody.create(null, new byte[0]);
+		} else if (body.contentEncoding() != null) {
+			builder.header(HEADER_CONTENT_ENCODING, body.contentEncoding());
+		}
+		return toOkBody(request, body);
+	}
+
+	/**
+	 * Adapts a body for OkHttp, reporting upload progress to requests that listen for it.
+	 */
+	private static okhttp3.RequestBody toOkBody(Request<?> request, final RequestBody body) {
+		final ProgressListener progressListener = request instanceof ProgressListener
+				? (ProgressListener) request : null;
+		final String contentType = body.contentType();
+		return new okhttp3.RequestBody() {
+			@Override
+			public MediaType contentType() {
+				return contentType != null ? MediaType.parse(contentType) : null;
+			}
+
+			@Override
+			public long contentLength() throws IOException {
+				return body.contentLength();
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				RequestBodyCodec.write(body, sink.outputStream(), progressListener);
+			}
+		};
+	}
+
+	private static ProtocolVersion toProtocolVersion(Protocol protocol) {
+		switch (protocol) {
+		case HTTP_1_0:
+			return new ProtocolVersion("HTTP", 1, 0);
+		case HTTP_2:
+		case H2_PRIOR_KNOWLEDGE:
+			return new ProtocolVersion("HTTP", 2, 0);
+		default:
+			return new ProtocolVersion("HTTP", 1, 1);
+		}
+	}
+
+	/**
+	 * Adapts a {@link DnsResolver} to OkHttp.
+	 */
+	private static class DnsAdapter implements Dns {
+		private final DnsResolver mResolver;
+
+		DnsAdapter(DnsResolver resolver) {
+			mResolver = resolver;
+		}
+
+		@Override
+		public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+			return mResolver.lookup(hostname);
+		}
+	}
+
+	/**
+	 * Reports the events of a single OkHttp call to a Volley {@link EventListener}.
+	 */
+	private static class EventBridge extends okhttp3.EventListener {
+		private final EventListener mListener;
+		private final Request<?> mRequest;
+		/** May be null. */
+		private final ConnectionPrewarmer mPrewarmer;
+		private long mConnectStartNanos;
+		private boolean mHandshaken;
+
+		EventBridge(EventListener listener, Request<?> request, ConnectionPrewarmer prewarmer) {
+			mListener = listener;
+			mRequest = request;
+			mPrewarmer = prewarmer;
+		}
+
+		@Override
+		public void callStart(Call call) {
+			mListener.connectStart(mRequest, call.request().url().host(),
+					call.request().url().port());
+		}
+
+		@Override
+		public void dnsStart(Call call, String domainName) {
+			mListener.dnsStart(mRequest, domainName);
+		}
+
+		@Override
+		public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+			mListener.dnsEnd(mRequest, domainName, addresses);
+		}
+
+		@Override
+		public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+			mConnectStartNanos = System.nanoTime();
+		}
+
+		@Override
+		public void secureConnectStart(Call call) {
+			mListener.secureConnectStart(mRequest);
+		}
+
+		@Override
+		public void secureConnectEnd(Call call, Handshake handshake) {
+			// Reported once the connection, and with it the session, is acquired.
+			mHandshaken = true;
+		}
+
+		@Override
+		public void connectEnd(Call call, InetSocketAddress address, Proxy proxy,
+				Protocol protocol) {
+			HurlStack.recordConnect(mRequest, call.request().url().host(),
+					(System.nanoTime() - mConnectStartNanos) / 1000000, false);
+		}
+
+		@Override
+		public void connectFailed(Call call, InetSocketAddress address, Proxy proxy,
+				Protocol protocol, IOException e) {
+			if (e instanceof SocketTimeoutException) {
+				// The time waited is a lower bound on the connect time.
+				HurlStack.recordConnect(mRequest, call.request().url().host(),
+						(System.nanoTime() - mConnectStartNanos) / 1000000, true);
+			}
+		}
+
+		@Override
+		public void connectionAcquired(Call call, Connection connection) {
+			if (mHandshaken && connection.socket() instanceof SSLSocket) {
+				mListener.secureConnectEnd(mRequest,
+						((SSLSocket) connection.socket()).getSession());
+			}
+			// Calls that didn't connect were given a pooled or multiplexed connection.
+			boolean reused = mConnectStartNanos == 0;
+			mListener.connectEnd(mRequest, Boolean.valueOf(reused));
+			if (mPrewarmer != null) {
+				HttpUrl url = call.request().url();
+				mPrewarmer.onConnection(url.scheme(), url.host(), url.port(),
+						Boolean.valueOf(reused));
+			}
+		}
+
+		@Override
+		public void requestHeadersEnd(Call call, okhttp3.Request request) {
+			mListener.requestHeadersEnd(mRequest, request.headers().byteCount());
+		}
+
+		@Override
+		public void requestBodyEnd(Call call, long byteCount) {
+			mListener.requestBodyEnd(mRequest, byteCount);
+		}
+
+		@Override
+		public void responseHeadersEnd(Call call, okhttp3.Response response) {
+			mListener.responseHeadersEnd(mRequest, response.code(),
+					response.headers().byteCount());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte budget for response bodies being buffered in memory.
+ * <p>
+ * {@link BasicNetwork} reserves the expected size of a body before reading it and hands the
+ * reservation to the request, which releases it when it finishes, after the body has been
+ * parsed and the result delivered. Requests performed outside a
+ * {@link com.android.volley.RequestQueue} release it when the network returns them, and retries
+ * release it before the next attempt. Several dispatchers downloading large payloads at once thus
+ * wait for each other instead of exhausting the heap. A reservation larger than the whole
+ * budget is allowed once nothing else is reserved, so every response can eventually proceed.
+ */
+public class ResponseBudget {
+
+    /** Smallest default budget, for devices with a very small heap. */
+    private static final long MIN_DEFAULT_CAPACITY = 2 * 1024 * 1024;
+
+    private static ResponseBudget sDefault;
+
+    private final long mCapacity;
+
+    /** Bytes not reserved; negative while a reservation has been exceeded. */
+    private long mAvailable;
+
+    /**
+     * Returns the process-wide budget used by {@link BasicNetwork}, one eighth of the heap.
+     */
+    public static synchronized ResponseBudget getDefault() {
+        if (sDefault == null) {
+            sDefault = new ResponseBudget(
+                    Math.max(MIN_DEFAULT_CAPACITY, Runtime.getRuntime().maxMemory() / 8));
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param capacityBytes the number of bytes that may be reserved at once
+     */
+    public ResponseBudget(long capacityBytes) {
+        mCapacity = capacityBytes;
+        mAvailable = capacityBytes;
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized long getAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * Reserves bytes, waiting until enough of the budget has been released.
+     *
+     * @return the number of bytes actually reserved, which must be passed to
+     *         {@link #release(long)}; at most the capacity of this budget
+     */
+    public synchronized long reserve(long bytes) throws InterruptedException {
+        long amount = Math.max(0, Math.min(bytes, mCapacity));
+        while (mAvailable < amount) {
+            wait();
+        }
+        mAvailable -= amount;
+        return amount;
+    }
+
+    /**
+     * Reserves bytes without waiting, overdrawing the budget if necessary. Used when a body
+     * turns out larger than what was reserved for it while it is already being read.
+     */
+    public synchronized void reserveNow(long bytes) {
+        mAvailable -= bytes;
+    }
+
+    /**
+     * Returns reserved bytes to the budget.
+     */
+    public synchronized void release(long bytes) {
+        if (bytes > 0) {
+            mAvailable += bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Bytes reserved for a body that is still in use, released at most once.
+     */
+    public static class Reservation {
+        private final ResponseBudget mBudget;
+        private final AtomicLong mBytes;
+
+        public Reservation(ResponseBudget budget, long bytes) {
+            mBudget = budget;
+            mBytes = new AtomicLong(bytes);
+        }
+
+        /**
+         * Returns the bytes to the budget; later calls do nothing.
+         */
+        public void release() {
+            mBudget.release(mBytes.getAndSet(0));
+        }
+    }
+}
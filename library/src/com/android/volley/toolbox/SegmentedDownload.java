@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.Response.ProgressListener;
+import com.android.volley.VolleyLog;
+import com.android.volley.error.AuthFailureError;
+import com.android.volley.error.VolleyError;
+import com.android.volley.misc.Utils;
+import com.android.volley.request.DownloadRequest;
+import com.android.volley.request.StreamingRequest;
+
+import org.apache.http.HttpStatus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a large file over several connections at once, which makes better use of the
+ * bandwidth of high-latency links than a single {@link DownloadRequest}.
+ * <p>
+ * A probe request for the first byte tells the size of the file and whether the server supports
+ * ranges. If it does, the file is split into byte ranges that are fetched concurrently on the
+ * {@link RequestQueue#LANE_BULK} lane and written into their position in
+ * <code>&lt;path&gt;.part</code>, which is renamed to the download path once every segment is
+ * complete. A segment that fails is retried on its own from where it stopped; the others carry
+ * on. If the file changes on the server meanwhile, the download starts over with a new probe.
+ * A server that ignores the range sends the whole file in response to the probe, which is
+ * saved as it arrives; files too small to be worth splitting are downloaded with a single
+ * {@link DownloadRequest} instead.
+ * <p>
+ * Must be started and canceled from the main thread, where the listeners are called, except
+ * for the progress listener, which is called from the network threads. Cancel a download
+ * with {@link #cancel()} rather than {@link RequestQueue#cancelAll(Object)}, so that the
+ * partial file is removed.
+ */
+public class SegmentedDownload {
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+
+    /** Segments are never smaller than this; smaller files aren't split at all. */
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+    /** Number of times a segment is queued before the download gives up. */
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+    /** Number of times the download starts over because the file changed. */
+    private static final int MAX_RESTARTS = 2;
+
+    /** Minimum time between two progress updates, except for the final one. */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    private final String mUrl;
+    private final String mDownloadPath;
+    private final Listener<String> mListener;
+    private final ErrorListener mErrorListener;
+
+    private int mSegmentCount = DEFAULT_SEGMENT_COUNT;
+    private Object mTag;
+    private volatile ProgressListener mProgressListener;
+
+    /** Requests in flight, so that they can be canceled. Main thread only. */
+    private final List<Request<?>> mRequests = new ArrayList<Request<?>>();
+    private RequestQueue mRequestQueue;
+    private boolean mStarted;
+    private boolean mDone;
+    private int mRemainingSegments;
+    private int mRestarts;
+
+    private RandomAccessFile mFile;
+    /** Shared by the segments; positional writes don't touch the channel's position. */
+    private volatile FileChannel mChannel;
+    private volatile long mLength = -1;
+    private volatile String mValidator;
+
+    private final AtomicLong mTransferred = new AtomicLong();
+    private final AtomicLong mLastProgressMs = new AtomicLong();
+
+    /**
+     * @param url URL of the file
+     * @param downloadPath path to save the file to
+     * @param listener Listener to receive the download path once the file is complete
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public SegmentedDownload(String url, String downloadPath, Listener<String> listener,
+            ErrorListener errorListener) {
+        mUrl = url;
+        mDownloadPath = downloadPath;
+        mListener = listener;
+        mErrorListener = errorListener;
+    }
+
+    /**
+     * Sets the number of connections the file is fetched over. Defaults to
+     * {@link #DEFAULT_SEGMENT_COUNT}.
+     */
+    public SegmentedDownload setSegmentCount(int segmentCount) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("segmentCount must be at least 1");
+        }
+        mSegmentCount = segmentCount;
+        return this;
+    }
+
+    /**
+     * Sets the tag of the requests the download is made of.
+     */
+    public SegmentedDownload setTag(Object tag) {
+        mTag = tag;
+        return this;
+    }
+
+    /**
+     * Set listener for tracking download progress
+     *
+     * @param listener
+     */
+    public SegmentedDownload setOnProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * Returns the file the download is written to until it is complete.
+     */
+    public File getPartialFile() {
+        return new File(mDownloadPath + ".part");
+    }
+
+    /**
+     * Starts the download on the given queue.
+     */
+    public void start(RequestQueue queue) {
+        throwIfNotOnMainThread();
+        if (mStarted) {
+            throw new IllegalStateException("Download already started");
+        }
+        mStarted = true;
+        mRequestQueue = queue;
+        add(new ProbeRequest(this));
+    }
+
+    /**
+     * Cancels the download and deletes the partial file. Neither listener is called afterwards.
+     */
+    public void cancel() {
+        throwIfNotOnMainThread();
+        if (mDone) {
+            return;
+        }
+        mDone = true;
+        cancelRequests();
+        closeFile();
+        getPartialFile().delete();
+    }
+
+    private void add(Request<?> request) {
+        request.setTag(mTag);
+        mRequests.add(request);
+        mRequestQueue.add(request);
+    }
+
+    private void cancelRequests() {
+        for (Request<?> request : mRequests) {
+            request.cancel();
+        }
+        mRequests.clear();
+    }
+
+    private void onProbeResponse(Probe probe) {
+        if (mDone) {
+            return;
+        }
+        if (probe.complete) {
+            onProbeComplete();
+            return;
+        }
+        int count = (int) Math.min(mSegmentCount, probe.length / MIN_SEGMENT_BYTES);
+        if (!probe.supportsRanges || count < 2) {
+            startSingleStream();
+            return;
+        }
+
+        mLength = probe.length;
+        mValidator = probe.validator;
+        try {
+            mFile = new RandomAccessFile(getPartialFile(), "rw");
+            // Reserve the whole file up front so that segments can be written in any order.
+            mFile.setLength(mLength);
+            mChannel = mFile.getChannel();
+        } catch (IOException e) {
+            fail(new VolleyError(e));
+            return;
+        }
+
+        long segmentLength = mLength / count;
+        mRemainingSegments = count;
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentLength;
+            long end = i == count - 1 ? mLength - 1 : start + segmentLength - 1;
+            add(new SegmentRequest(this, new Segment(start, end)));
+        }
+        VolleyLog.d("Downloading %s in %d segments of %d bytes", mUrl, count, segmentLength);
+    }
+
+    /** Moves the whole file the probe was sent in place of its first byte. */
+    private void onProbeComplete() {
+        File part = getPartialFile();
+        File target = new File(mDownloadPath);
+        if (!part.renameTo(target)) {
+            fail(new VolleyError(new IOException("Unable to rename " + part + " to " + target)));
+            return;
+        }
+        mDone = true;
+        if (mListener != null) {
+            mListener.onResponse(mDownloadPath);
+        }
+    }
+
+    /** Downloads the whole file with a single connection. */
+    private void startSingleStream() {
+        DownloadRequest request = new DownloadRequest(mUrl, mDownloadPath,
+                new Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        mDone = true;
+                        mRequests.clear();
+                        if (mListener != null) {
+                            mListener.onResponse(response);
+                        }
+                    }
+                }, new ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        mDone = true;
+                        mRequests.clear();
+                        if (mErrorListener != null) {
+                            mErrorListener.onErrorResponse(error);
+                        }
+                    }
+                });
+        request.setOnProgressListener(mProgressListener);
+        add(request);
+    }
+
+    private void onSegmentResponse(SegmentRequest request) {
+        mRequests.remove(request);
+        if (mDone || --mRemainingSegments > 0) {
+            return;
+        }
+        File part = getPartialFile();
+        File target = new File(mDownloadPath);
+        try {
+            // Make sure the data is on disk before the rename makes it visible.
+            mChannel.force(true);
+            closeFile();
+            if (!part.renameTo(target)) {
+                throw new IOException("Unable to rename " + part + " to " + target);
+            }
+        } catch (IOException e) {
+            fail(new VolleyError(e));
+            return;
+        }
+        mDone = true;
+        if (mListener != null) {
+            mListener.onResponse(mDownloadPath);
+        }
+    }
+
+    private void onSegmentError(SegmentRequest request, VolleyError error) {
+        mRequests.remove(request);
+        if (mDone) {
+            return;
+        }
+        Segment segment = request.mSegment;
+        if (segment.changed) {
+            if (++mRestarts > MAX_RESTARTS) {
+                fail(error);
+            } else {
+                restart();
+            }
+            return;
+        }
+        if (++segment.attempts >= MAX_SEGMENT_ATTEMPTS) {
+            fail(error);
+            return;
+        }
+        VolleyLog.d("Retrying segment %d-%d of %s after %s", segment.start, segment.end, mUrl,
+                error.toString());
+        add(new SegmentRequest(this, segment));
+    }
+
+    /**
+     * Drops what has been downloaded of a file that changed on the server, and probes it again.
+     */
+    private void restart() {
+        VolleyLog.d("%s changed during segmented download, starting over", mUrl);
+        cancelRequests();
+        closeFile();
+        getPartialFile().delete();
+        mLength = -1;
+        mValidator = null;
+        mTransferred.set(0);
+        add(new ProbeRequest(this));
+    }
+
+    private void fail(VolleyError error) {
+        mDone = true;
+        cancelRequests();
+        closeFile();
+        getPartialFile().delete();
+        if (mErrorListener != null) {
+            mErrorListener.onErrorResponse(error);
+        }
+    }
+
+    private void closeFile() {
+        mChannel = null;
+        Utils.closeQuietly(mFile);
+        mFile = null;
+    }
+
+    /** Called from the network threads as segments are written. */
+    private void onTransferred(int count) {
+        ProgressListener listener = mProgressListener;
+        long transferred = mTransferred.addAndGet(count);
+        if (listener == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long last = mLastProgressMs.get();
+        boolean done = mLength >= 0 && transferred >= mLength;
+        if (!done && (now - last < PROGRESS_INTERVAL_MS
+                || !mLastProgressMs.compareAndSet(last, now))) {
+            return;
+        }
+        listener.onProgress(transferred, mLength);
+    }
+
+    private void throwIfNotOnMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException(
+                    "SegmentedDownload must be invoked from the main thread.");
+        }
+    }
+
+    /**
+     * Returns the total length of a Content-Range header such as <code>bytes 0-0/200</code>,
+     * or -1 if it is unknown.
+     */
+    private static long parseRangeLength(String contentRange) {
+        int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the value of a Content-Length header, or -1 if it is missing or invalid.
+     */
+    private static long parseContentLength(String contentLength) {
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the first byte position of a Content-Range header, or -1 if it can't be parsed.
+     */
+    private static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** What the probe found out about the file. */
+    private static class Probe {
+        boolean supportsRanges;
+        long length = -1;
+        String validator;
+        /** Set if the whole file was sent, and written to the partial file. */
+        boolean complete;
+    }
+
+    /** A byte range of the file, inclusive, and how much of it has been written. */
+    private static class Segment {
+        final long start;
+        final long end;
+        final AtomicLong written = new AtomicLong();
+        /** Set if the server sent the whole file instead, as it changed since the probe. */
+        volatile boolean changed;
+        /** Main thread only. */
+        int attempts;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Asks for the first byte of the file. A 206 response carries the length of the file and
+     * proves that ranges are supported. A server that ignores the range sends the whole file,
+     * which is written to the partial file rather than thrown away and fetched again.
+     */
+    private static class ProbeRequest extends StreamingRequest<Probe> {
+        private final SegmentedDownload mDownload;
+
+        ProbeRequest(final SegmentedDownload download) {
+            super(Method.GET, download.mUrl, new ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    download.mRequests.clear();
+                    download.fail(error);
+                }
+            });
+            mDownload = download;
+            setLane(RequestQueue.LANE_BULK);
+        }
+
+        /**
+         * A whole file cut short is written again from the start by the next attempt.
+         */
+        @Override
+        public boolean isResumable() {
+            return true;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = new HashMap<String, String>(super.getHeaders());
+            headers.put("Range", "bytes=0-0");
+            return headers;
+        }
+
+        @Override
+        protected Probe parseStream(int statusCode, Map<String, String> headers,
+                InputStream body) throws IOException {
+            Probe probe = new Probe();
+            if (statusCode == HttpStatus.SC_OK) {
+                writeFile(headers, body);
+                probe.complete = true;
+            } else if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                probe.length = parseRangeLength(headers.get("Content-Range"));
+                probe.supportsRanges = probe.length > 0;
+                // Weak ETags can't be used with If-Range.
+                String etag = headers.get("ETag");
+                probe.validator = etag != null && !etag.startsWith("W/")
+                        ? etag : headers.get("Last-Modified");
+            }
+            return probe;
+        }
+
+        /** Writes the whole file to the partial file; it is renamed on the main thread. */
+        private void writeFile(Map<String, String> headers, InputStream body) throws IOException {
+            mDownload.mLength = parseContentLength(headers.get("Content-Length"));
+            mDownload.mTransferred.set(0);
+            FileOutputStream out = new FileOutputStream(mDownload.getPartialFile());
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = body.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    mDownload.onTransferred(count);
+                }
+                out.flush();
+                // Make sure the data is on disk before the rename makes it visible.
+                out.getFD().sync();
+            } finally {
+                Utils.closeQuietly(out);
+            }
+        }
+
+        @Override
+        protected void deliverResponse(Probe response) {
+            mDownload.mRequests.remove(this);
+            mDownload.onProbeResponse(response);
+        }
+    }
+
+    /**
+     * Fetches the rest of a segment and writes it into its position in the partial file. Each
+     * attempt asks for the bytes from where the previous one stopped.
+     */
+    private static class SegmentRequest extends StreamingRequest<Segment> {
+        private final SegmentedDownload mDownload;
+        private final Segment mSegment;
+
+        SegmentRequest(final SegmentedDownload download, final Segment segment) {
+            super(Method.GET, download.mUrl, null);
+            mDownload = download;
+            mSegment = segment;
+            setLane(RequestQueue.LANE_BULK);
+        }
+
+        @Override
+        public boolean isResumable() {
+            return true;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = new HashMap<String, String>(super.getHeaders());
+            long position = mSegment.start + mSegment.written.get();
+            headers.put("Range", "bytes=" + position + "-" + mSegment.end);
+            String validator = mDownload.mValidator;
+            if (validator != null) {
+                headers.put("If-Range", validator);
+            }
+            return headers;
+        }
+
+        @Override
+        protected Segment parseStream(int statusCode, Map<String, String> headers,
+                InputStream body) throws IOException, VolleyError {
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                mSegment.changed = true;
+                throw new VolleyError("File changed during segmented download");
+            }
+            long position = mSegment.start + mSegment.written.get();
+            if (parseRangeStart(headers.get("Content-Range")) != position) {
+                throw new IOException("Unexpected Content-Range " + headers.get("Content-Range"));
+            }
+            FileChannel channel = mDownload.mChannel;
+            if (channel == null) {
+                throw new IOException("Download closed");
+            }
+
+            byte[] buffer = new byte[8192];
+            long remaining = mSegment.end + 1 - position;
+            int count;
+            while (remaining > 0 && (count = body.read(buffer,
+                    0, (int) Math.min(buffer.length, remaining))) != -1) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                remaining -= count;
+                mSegment.written.addAndGet(count);
+                mDownload.onTransferred(count);
+            }
+            if (remaining > 0) {
+                // Resumed by the next attempt.
+                throw new IOException("Segment ended " + remaining + " bytes early");
+            }
+            return mSegment;
+        }
+
+        @Override
+        protected void deliverResponse(Segment response) {
+            mDownload.onSegmentResponse(this);
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            mDownload.onSegmentError(this, error);
+        }
+    }
+}
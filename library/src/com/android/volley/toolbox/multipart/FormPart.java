@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox.multipart;
+
+import static com.android.volley.misc.MultipartUtils.BINARY;
+import static com.android.volley.misc.MultipartUtils.COLON_SPACE;
+import static com.android.volley.misc.MultipartUtils.CRLF;
+import static com.android.volley.misc.MultipartUtils.CRLF_BYTES;
+import static com.android.volley.misc.MultipartUtils.FILENAME;
+import static com.android.volley.misc.MultipartUtils.FORM_DATA;
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_DISPOSITION;
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TRANSFER_ENCODING;
+import static com.android.volley.misc.MultipartUtils.HEADER_CONTENT_TYPE;
+import static com.android.volley.misc.MultipartUtils.SEMICOLON_SPACE;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A part as {@link com.android.volley.request.MultiPartRequest} writes it. Unlike
+ * {@link StringPart} and {@link FilePart}, names and filenames are sent as given rather than
+ * URL-encoded, so a server sees <code>files[]</code> or <code>my photo.jpg</code> unchanged,
+ * and file parts carry a <code>Content-Transfer-Encoding: binary</code> header.
+ */
+public final class FormPart implements Part {
+
+    private final byte[] mHeader;
+    private final byte[] mValue;
+    private final File mFile;
+
+    /**
+     * Creates a part holding a value.
+     *
+     * @param name name of the parameter, written as given
+     * @param contentType content type of the value
+     * @param value the value, already encoded
+     */
+    public FormPart(String name, String contentType, byte[] value) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name may not be null");     //$NON-NLS-1$
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Value may not be null");    //$NON-NLS-1$
+        }
+        mHeader = toBytes(String.format(HEADER_CONTENT_DISPOSITION + COLON_SPACE + FORM_DATA, name)
+                + CRLF + HEADER_CONTENT_TYPE + COLON_SPACE + contentType + CRLF + CRLF);
+        mValue = value;
+        mFile = null;
+    }
+
+    /**
+     * Creates a part streaming a file, named after the file.
+     *
+     * @param name name of the parameter, written as given
+     * @param file the file, read each time the part is written
+     * @param contentType content type of the file
+     */
+    public FormPart(String name, File file, String contentType) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name may not be null");     //$NON-NLS-1$
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("File may not be null");     //$NON-NLS-1$
+        }
+        mHeader = toBytes(String.format(HEADER_CONTENT_DISPOSITION + COLON_SPACE + FORM_DATA
+                + SEMICOLON_SPACE + FILENAME, name, file.getName())
+                + CRLF + HEADER_CONTENT_TYPE + COLON_SPACE + contentType
+                + CRLF + HEADER_CONTENT_TRANSFER_ENCODING + COLON_SPACE + BINARY + CRLF + CRLF);
+        mValue = null;
+        mFile = file;
+    }
+
+    @Override
+    public long getContentLength(Boundary boundary) {
+        long bodyLength = mFile != null ? mFile.length() : mValue.length;
+        return boundary.getStartingBoundary().length + mHeader.length + bodyLength
+                + CRLF_BYTES.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out, Boundary boundary) throws IOException {
+        out.write(boundary.getStartingBoundary());
+        out.write(mHeader);
+        if (mFile != null) {
+            InputStream in = new FileInputStream(mFile);
+            try {
+                byte[] tmp = new byte[4096];
+                int l;
+                while ((l = in.read(tmp)) != -1) {
+                    out.write(tmp, 0, l);
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            out.write(mValue);
+        }
+        out.write(CRLF_BYTES);
+    }
+
+    /**
+     * Keeps the low byte of each char, as {@link java.io.DataOutputStream#writeBytes} does.
+     */
+    private static byte[] toBytes(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
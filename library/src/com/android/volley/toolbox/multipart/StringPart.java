@@ -25,6 +25,21 @@ public final class StringPart extends BasePart {
      * @throws RuntimeException if <code>charset</code> is unsupported by OS.
      */
     public StringPart(String name, String value, String charset) {
+        this(name, value, charset, null);
+    }
+
+    /**
+     * @param name String - name of parameter (may not be <code>null</code>).
+     * @param value String - value of parameter (may not be <code>null</code>).
+     * @param charset String, if null is passed then default "ISO-8859-1" charset is used.
+     * @param contentType String. If <code>null</code> is passed,
+     *        then default "text/plain" is used.
+     *
+     * @throws IllegalArgumentException if either <code>value</code>
+     *         or <code>name</code> is <code>null</code>.
+     * @throws RuntimeException if <code>charset</code> is unsupported by OS.
+     */
+    public StringPart(String name, String value, String charset, String contentType) {
         if (name == null) {
             throw new IllegalArgumentException("Name may not be null");     //$NON-NLS-1$
         }
@@ -38,6 +53,7 @@ public final class StringPart extends BasePart {
             charset = HTTP.DEFAULT_CONTENT_CHARSET;
         }
         final String partCharset = charset;
+        final String partContentType = (contentType == null) ? HTTP.PLAIN_TEXT_TYPE : contentType;
         
         try {
             this.valueBytes = value.getBytes(partCharset);
@@ -50,7 +66,7 @@ public final class StringPart extends BasePart {
                 return String.format(HEADER_CONTENT_DISPOSITION + COLON_SPACE + FORM_DATA, partName);
             }
             public String getContentType() {
-                return HEADER_CONTENT_TYPE + COLON_SPACE + HTTP.PLAIN_TEXT_TYPE;
+                return HEADER_CONTENT_TYPE + COLON_SPACE + partContentType;
                 		//"Content-Type: " + HTTP.PLAIN_TEXT_TYPE + HTTP.CHARSET_PARAM + partCharset;  //$NON-NLS-1$
             }
             public String getContentTransferEncoding() {